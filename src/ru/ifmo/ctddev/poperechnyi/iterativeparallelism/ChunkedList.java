@@ -0,0 +1,52 @@
+package ru.ifmo.ctddev.poperechnyi.iterativeparallelism;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Unmodifiable view of prefixes of several arrays, one after another. Lets results collected by chunks
+ * be returned as one list without copying them.
+ */
+class ChunkedList<T> extends AbstractList<T> implements RandomAccess {
+    private final Object[][] chunks;
+    private final int[] offsets;
+
+    /**
+     * @param chunks arrays of elements
+     * @param sizes  number of elements used in every array
+     */
+    ChunkedList(Object[][] chunks, int[] sizes) {
+        List<Object[]> used = new ArrayList<>(chunks.length);
+        int[] offsets = new int[chunks.length + 1];
+        for (int i = 0; i < chunks.length; i++) {
+            // empty chunks are dropped so that offsets are strictly increasing
+            if (sizes[i] > 0) {
+                used.add(chunks[i]);
+                offsets[used.size()] = offsets[used.size() - 1] + sizes[i];
+            }
+        }
+        this.chunks = used.toArray(new Object[used.size()][]);
+        this.offsets = Arrays.copyOf(offsets, used.size() + 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        int chunk = Arrays.binarySearch(offsets, index);
+        if (chunk < 0) {
+            chunk = -chunk - 2;
+        }
+        return (T) chunks[chunk][index - offsets[chunk]];
+    }
+
+    @Override
+    public int size() {
+        return offsets[offsets.length - 1];
+    }
+}
@@ -3,20 +3,133 @@ package ru.ifmo.ctddev.poperechnyi.iterativeparallelism;
 import info.kgeorgiy.java.advanced.concurrent.ListIP;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.DoublePredicate;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 
 
 public class IterativeParallelism implements ListIP {
+    private static final int NOT_FOUND = Integer.MAX_VALUE;
+    /**
+     * Work estimated to take less is done in the calling thread, as starting and joining threads would take longer.
+     */
+    private static final long SEQUENTIAL_NANOS = 200_000;
+    /**
+     * Minimal estimated time of a chunk, so that taking chunks costs little compared to running them.
+     */
+    private static final long CHUNK_NANOS = 20_000;
+    private static final int OVERSPLIT = 4;
+    private static final double LEARNING_RATE = 0.5;
+
+    /**
+     * Learned time per element in nanoseconds, by class of the function applied to elements,
+     * then by operation and class of the elements, see {@link CostKey}.
+     * Classes are weak keys, so learning doesn't keep them from being unloaded. Guarded by itself.
+     */
+    private final Map<Class<?>, Map<String, Double>> costs = new WeakHashMap<>();
+
     @Override
     public String join(int threads, List<?> values) throws InterruptedException {
-        return String.join("", "", parallelWork(threads, values,
-                new Monoid<>(StringBuilder::new, StringBuilder::append), (a) -> new StringBuilder(a.toString())));
+        return join(threads, values, "", "", "");
+    }
+
+    /**
+     * Joins string representations of {@code values} with {@code separator}, like {@link String#join String.join}.
+     *
+     * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values    {@link List} to join
+     * @param separator Separator put between elements
+     * @return Joined string
+     * @throws InterruptedException
+     */
+    public String join(int threads, List<?> values, CharSequence separator) throws InterruptedException {
+        return join(threads, values, separator, "", "");
+    }
+
+    /**
+     * Joins string representations of {@code values} with {@code separator}, like {@link java.util.StringJoiner StringJoiner}.
+     * <p>
+     * Threads convert their elements to strings and sum up their lengths first. Then one buffer of the exact size
+     * is allocated and every thread copies its strings to its own part of it, so characters are copied only once
+     * before the final string is made.
+     *
+     * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values    {@link List} to join
+     * @param separator Separator put between elements
+     * @param prefix    String put before the first element
+     * @param suffix    String put after the last element
+     * @return Joined string
+     * @throws InterruptedException
+     * @throws OutOfMemoryError if the result is longer than a string can be
+     */
+    public String join(int threads, final List<?> values, CharSequence separator, CharSequence prefix, CharSequence suffix) throws InterruptedException {
+        final String sep = separator.toString();
+        final String[] strings = new String[values.size()];
+        final Split split = split(threads, values.size(), key(null, "join", values));
+        final List<?> list = randomAccess(values, split);
+        final long[] lengths = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long length = 0;
+            ListIterator<?> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                strings[i] = String.valueOf(it.next());
+                length += strings[i].length();
+            }
+            lengths[chunk] = length;
+        });
+        final long[] offsets = new long[lengths.length];
+        long total = prefix.length();
+        for (int chunk = 0; chunk < lengths.length; chunk++) {
+            offsets[chunk] = total;
+            total += lengths[chunk];
+        }
+        total += (long) Math.max(0, strings.length - 1) * sep.length() + suffix.length();
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Joined string is too long: " + total);
+        }
+        final char[] buffer = new char[(int) total];
+        prefix.toString().getChars(0, prefix.length(), buffer, 0);
+        forChunks(split, (chunk, from, to) -> {
+            // separators between elements before the chunk are not counted in its offset yet
+            int position = (int) (offsets[chunk] + (long) Math.max(0, from - 1) * sep.length());
+            for (int i = from; i < to; i++) {
+                if (i > 0) {
+                    sep.getChars(0, sep.length(), buffer, position);
+                    position += sep.length();
+                }
+                strings[i].getChars(0, strings[i].length(), buffer, position);
+                position += strings[i].length();
+            }
+        });
+        suffix.toString().getChars(0, suffix.length(), buffer, buffer.length - suffix.length());
+        return new String(buffer);
     }
 
     /***
@@ -25,17 +138,30 @@ public class IterativeParallelism implements ListIP {
      * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}.
      * @param values    {@link List} to filter
      * @param predicate Filtering predicate. See {@link java.util.function.Predicate Predicate}
-     * @return New list of elements for which {@code predicate} returns true.
+     * @return New list of elements for which {@code predicate} returns true. Every thread collects its part
+     * to its own array, and the list is a view of these arrays, so elements are never copied.
      * @throws InterruptedException
      */
 
     @Override
     public <T> List<T> filter(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        Monoid<List<T>> monoid = new Monoid<>(ArrayList::new, (a, b) -> {
-            a.addAll(b);
-            return a;
+        final Split split = split(threads, values.size(), key(predicate, "filter", values));
+        final List<? extends T> list = randomAccess(values, split);
+        final Object[][] chunks = new Object[split.chunks][];
+        final int[] sizes = new int[chunks.length];
+        forChunks(split, (chunk, from, to) -> {
+            Object[] buffer = new Object[to - from];
+            int size = 0;
+            for (ListIterator<? extends T> it = list.listIterator(from); it.nextIndex() < to; ) {
+                T element = it.next();
+                if (predicate.test(element)) {
+                    buffer[size++] = element;
+                }
+            }
+            chunks[chunk] = buffer;
+            sizes[chunk] = size;
         });
-        return parallelWork(threads, values, monoid, (a) -> predicate.test(a) ? Collections.singletonList(a) : Collections.EMPTY_LIST);
+        return new ChunkedList<>(chunks, sizes);
     }
 
 
@@ -45,17 +171,22 @@ public class IterativeParallelism implements ListIP {
      * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
      * @param values  {@link List} to filter
      * @param f       Mapping function. {@link Function Function}
-     * @return New List of {@code f(a)}
+     * @return New List of {@code f(a)}, backed by one array which all threads write to
      * @throws InterruptedException
      */
 
     @Override
     public <T, U> List<U> map(int threads, List<? extends T> values, Function<? super T, ? extends U> f) throws InterruptedException {
-        Monoid<List<U>> monoid = new Monoid<>(ArrayList::new, (a, b) -> {
-            a.addAll(b);
-            return a;
+        final Object[] result = new Object[values.size()];
+        final Split split = split(threads, values.size(), key(f, "map", values));
+        final List<? extends T> list = randomAccess(values, split);
+        forChunks(split, (chunk, from, to) -> {
+            ListIterator<? extends T> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                result[i] = f.apply(it.next());
+            }
         });
-        return parallelWork(threads, values, monoid, (a) -> Collections.singletonList(f.apply(a)));
+        return new ChunkedList<>(new Object[][]{result}, new int[]{result.length});
     }
 
     /***
@@ -71,9 +202,7 @@ public class IterativeParallelism implements ListIP {
 
     @Override
     public <T> T maximum(int threads, List<? extends T> values, Comparator<? super T> comparator) throws InterruptedException {
-        if (values.size() == 0) throw new IllegalArgumentException("Empty list");
-        Monoid<T> monoid = new Monoid<>(() -> values.get(0), (a, b) -> (comparator.compare(a, b) >= 0) ? a : b);
-        return parallelWork(threads, values, monoid, Function.identity());
+        return maximum(threads, values, comparator, key(comparator, "maximum", values));
     }
 
     /**
@@ -85,7 +214,13 @@ public class IterativeParallelism implements ListIP {
 
     @Override
     public <T> T minimum(int threads, List<? extends T> values, Comparator<? super T> comparator) throws InterruptedException {
-        return maximum(threads, values, comparator.reversed());
+        return maximum(threads, values, comparator.reversed(), key(comparator, "minimum", values));
+    }
+
+    private <T> T maximum(int threads, List<? extends T> values, Comparator<? super T> comparator, CostKey key) throws InterruptedException {
+        if (values.size() == 0) throw new IllegalArgumentException("Empty list");
+        Monoid<T> monoid = new Monoid<>(() -> values.get(0), (a, b) -> (comparator.compare(a, b) >= 0) ? a : b);
+        return parallelWork(threads, values, monoid, Function.identity(), key);
     }
 
     /**
@@ -100,9 +235,7 @@ public class IterativeParallelism implements ListIP {
 
     @Override
     public <T> boolean all(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-
-        Monoid<Boolean> monoid = new Monoid<>(() -> Boolean.TRUE, Boolean::logicalAnd);
-        return parallelWork(threads, values, monoid, predicate::test);
+        return search(threads, values, predicate.negate(), false, key(predicate, "search", values)) == NOT_FOUND;
     }
 
     /**
@@ -117,49 +250,1171 @@ public class IterativeParallelism implements ListIP {
 
     @Override
     public <T> boolean any(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return !all(threads, values, predicate.negate());
-    }
-
-    private <T, R> R parallelWork(int threads, final List<? extends T> values, final Monoid<R> monoid, final Function<? super T, ? extends R> function) throws InterruptedException {
-        if (values.size() == 0) {
-            return monoid.get();
-        }
-        threads = Math.max(Math.min(threads, values.size()), 1);
-        final ArrayList<R> results = new ArrayList<>(threads);
-        for (int j = 0; j < threads; ++j) {
-            results.add(monoid.get());
-        }
-        int length = values.size() / threads + 1;
-        List<List<? extends T>> tasks = new ArrayList<>();
-        List<Thread> threadList = new ArrayList<>(threads);
-        for (int i = 0; i < values.size(); i += length) {
-            tasks.add(values.subList(i, Math.min(i + length, values.size())));
-        }
-        int thr = 0;
-        for (final List<? extends T> task : tasks) {
-            final int num = thr;
-            thr++;
-            threadList.add(num, new Thread(() -> {
-                R acc = results.get(num);
-                for (T aTask : task) {
-                    acc = monoid.operate(acc, function.apply(aTask));
+        return search(threads, values, predicate, false, key(predicate, "search", values)) != NOT_FOUND;
+    }
+
+    /**
+     * Finds some element matching {@code predicate}, not necessarily the first one.
+     * Threads stop as soon as any of them finds one.
+     *
+     * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values    List where to find
+     * @param predicate Checking predicate. See {@link Predicate Predicate}
+     * @return Element for which {@code predicate::test} returns true, or empty if there is none
+     * @throws InterruptedException
+     * @throws NullPointerException if the element found is {@code null}
+     */
+    public <T> Optional<T> findAny(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        int index = search(threads, values, predicate, false, key(predicate, "search", values));
+        return index == NOT_FOUND ? Optional.empty() : Optional.of(values.get(index));
+    }
+
+    /**
+     * Finds the first element matching {@code predicate}.
+     * Threads checking elements after the found one stop.
+     *
+     * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values    List where to find
+     * @param predicate Checking predicate. See {@link Predicate Predicate}
+     * @return First element for which {@code predicate::test} returns true, or empty if there is none
+     * @throws InterruptedException
+     * @throws NullPointerException if the element found is {@code null}
+     */
+    public <T> Optional<T> findFirst(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        int index = indexOf(threads, values, predicate);
+        return index < 0 ? Optional.empty() : Optional.of(values.get(index));
+    }
+
+    /**
+     * Finds index of the first element matching {@code predicate}, same way as {@link #findFirst findFirst}.
+     *
+     * @param threads   Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values    List where to find
+     * @param predicate Checking predicate. See {@link Predicate Predicate}
+     * @return Index of the first element for which {@code predicate::test} returns true, or {@code -1} if there is none
+     * @throws InterruptedException
+     */
+    public <T> int indexOf(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        int index = search(threads, values, predicate, true, key(predicate, "search", values));
+        return index == NOT_FOUND ? -1 : index;
+    }
+
+    /**
+     * Parallel version of {@link List#indexOf(Object)}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  List where to find
+     * @param value   Element to find, may be {@code null}
+     * @return Index of the first element equal to {@code value}, or {@code -1} if there is none
+     * @throws InterruptedException
+     */
+    public int indexOf(int threads, List<?> values, Object value) throws InterruptedException {
+        return indexOf(threads, values, (Predicate<Object>) element -> Objects.equals(value, element));
+    }
+
+    /**
+     * Sums elements of {@code values}. Overflow is not checked.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Sum of all elements, {@code 0} for an empty array
+     * @throws InterruptedException
+     */
+    public long sum(int threads, final int[] values) throws InterruptedException {
+        final Split split = split(threads, values.length, key(null, "sum(int[])"));
+        final long[] partial = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            partial[chunk] = sum;
+        });
+        long sum = 0;
+        for (long value : partial) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns minimum of {@code values} with no boxing, see {@link Math#min(int, int) Math.min}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Minimum element of {@code values}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public int min(int threads, final int[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "min(int[])"));
+        final int[] partial = new int[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            int result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.min(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        int result = partial[0];
+        for (int value : partial) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns maximum of {@code values} with no boxing, see {@link Math#max(int, int) Math.max}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Maximum element of {@code values}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public int max(int threads, final int[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "max(int[])"));
+        final int[] partial = new int[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            int result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.max(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        int result = partial[0];
+        for (int value : partial) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Counts elements of {@code values} matching {@code predicate}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @param predicate Checking predicate. See {@link IntPredicate IntPredicate}
+     * @return Number of elements for which {@code predicate} returns true
+     * @throws InterruptedException
+     */
+    public int count(int threads, final int[] values, final IntPredicate predicate) throws InterruptedException {
+        final Split split = split(threads, values.length, key(predicate, "count(int[])"));
+        final int[] partial = new int[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (predicate.test(values[i])) {
+                    count++;
                 }
-                results.set(num, acc);
-            }));
-            threadList.get(num).start();
+            }
+            partial[chunk] = count;
+        });
+        int count = 0;
+        for (int value : partial) {
+            count += value;
         }
-        for (Thread thread : threadList) {
-            thread.join();
+        return count;
+    }
+
+    /**
+     * Sums elements of {@code values}. Overflow is not checked.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Sum of all elements, {@code 0} for an empty array
+     * @throws InterruptedException
+     */
+    public long sum(int threads, final long[] values) throws InterruptedException {
+        final Split split = split(threads, values.length, key(null, "sum(long[])"));
+        final long[] partial = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            partial[chunk] = sum;
+        });
+        long sum = 0;
+        for (long value : partial) {
+            sum += value;
         }
+        return sum;
+    }
+
+    /**
+     * Returns minimum of {@code values} with no boxing, see {@link Math#min(long, long) Math.min}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Minimum element of {@code values}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public long min(int threads, final long[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "min(long[])"));
+        final long[] partial = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.min(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        long result = partial[0];
+        for (long value : partial) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns maximum of {@code values} with no boxing, see {@link Math#max(long, long) Math.max}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Maximum element of {@code values}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public long max(int threads, final long[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "max(long[])"));
+        final long[] partial = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.max(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        long result = partial[0];
+        for (long value : partial) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Counts elements of {@code values} matching {@code predicate}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @param predicate Checking predicate. See {@link LongPredicate LongPredicate}
+     * @return Number of elements for which {@code predicate} returns true
+     * @throws InterruptedException
+     */
+    public int count(int threads, final long[] values, final LongPredicate predicate) throws InterruptedException {
+        final Split split = split(threads, values.length, key(predicate, "count(long[])"));
+        final int[] partial = new int[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (predicate.test(values[i])) {
+                    count++;
+                }
+            }
+            partial[chunk] = count;
+        });
+        int count = 0;
+        for (int value : partial) {
+            count += value;
+        }
+        return count;
+    }
+
+    /**
+     * Sums elements of {@code values}. Chunks are summed separately, so the result may differ
+     * from sequential summation in the last bits.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Sum of all elements, {@code 0} for an empty array
+     * @throws InterruptedException
+     */
+    public double sum(int threads, final double[] values) throws InterruptedException {
+        final Split split = split(threads, values.length, key(null, "sum(double[])"));
+        final double[] partial = new double[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            partial[chunk] = sum;
+        });
+        double sum = 0;
+        for (double value : partial) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns minimum of {@code values} with no boxing, see {@link Math#min(double, double) Math.min}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Minimum element of {@code values}, {@code NaN} if any element is {@code NaN}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public double min(int threads, final double[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "min(double[])"));
+        final double[] partial = new double[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            double result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.min(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        double result = partial[0];
+        for (double value : partial) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns maximum of {@code values} with no boxing, see {@link Math#max(double, double) Math.max}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @return Maximum element of {@code values}, {@code NaN} if any element is {@code NaN}
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if {@code values} is empty
+     */
+    public double max(int threads, final double[] values) throws InterruptedException {
+        if (values.length == 0) throw new IllegalArgumentException("Empty array");
+        final Split split = split(threads, values.length, key(null, "max(double[])"));
+        final double[] partial = new double[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            double result = values[from];
+            for (int i = from + 1; i < to; i++) {
+                result = Math.max(result, values[i]);
+            }
+            partial[chunk] = result;
+        });
+        double result = partial[0];
+        for (double value : partial) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Counts elements of {@code values} matching {@code predicate}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  Array to reduce
+     * @param predicate Checking predicate. See {@link DoublePredicate DoublePredicate}
+     * @return Number of elements for which {@code predicate} returns true
+     * @throws InterruptedException
+     */
+    public int count(int threads, final double[] values, final DoublePredicate predicate) throws InterruptedException {
+        final Split split = split(threads, values.length, key(predicate, "count(double[])"));
+        final int[] partial = new int[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (predicate.test(values[i])) {
+                    count++;
+                }
+            }
+            partial[chunk] = count;
+        });
+        int count = 0;
+        for (int value : partial) {
+            count += value;
+        }
+        return count;
+    }
 
+    /**
+     * Applies {@code f} to every element, storing results to a {@code long[]} so that they are never boxed.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link List} to map
+     * @param f       Mapping function. See {@link ToLongFunction ToLongFunction}
+     * @return Array of {@code f(a)} in the order of {@code values}
+     * @throws InterruptedException
+     */
+    public <T> long[] mapToLong(int threads, final List<? extends T> values, final ToLongFunction<? super T> f) throws InterruptedException {
+        final long[] result = new long[values.size()];
+        final Split split = split(threads, values.size(), key(f, "mapToLong", values));
+        final List<? extends T> list = randomAccess(values, split);
+        forChunks(split, (chunk, from, to) -> {
+            ListIterator<? extends T> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                result[i] = f.applyAsLong(it.next());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Applies {@code f} to every element, storing results to a {@code double[]} so that they are never boxed.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link List} to map
+     * @param f       Mapping function. See {@link ToDoubleFunction ToDoubleFunction}
+     * @return Array of {@code f(a)} in the order of {@code values}
+     * @throws InterruptedException
+     */
+    public <T> double[] mapToDouble(int threads, final List<? extends T> values, final ToDoubleFunction<? super T> f) throws InterruptedException {
+        final double[] result = new double[values.size()];
+        final Split split = split(threads, values.size(), key(f, "mapToDouble", values));
+        final List<? extends T> list = randomAccess(values, split);
+        forChunks(split, (chunk, from, to) -> {
+            ListIterator<? extends T> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                result[i] = f.applyAsDouble(it.next());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sums {@code f} over elements of {@code values}, without boxing results of {@code f} or building an array of them.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link List} to reduce
+     * @param f       Function to sum. See {@link ToLongFunction ToLongFunction}
+     * @return Sum of {@code f(a)}, {@code 0} for an empty list
+     * @throws InterruptedException
+     */
+    public <T> long sumLong(int threads, final List<? extends T> values, final ToLongFunction<? super T> f) throws InterruptedException {
+        final Split split = split(threads, values.size(), key(f, "sumLong", values));
+        final List<? extends T> list = randomAccess(values, split);
+        final long[] partial = new long[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            long sum = 0;
+            ListIterator<? extends T> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                sum += f.applyAsLong(it.next());
+            }
+            partial[chunk] = sum;
+        });
+        long sum = 0;
+        for (long value : partial) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Starts a lazy pipeline over {@code values}. Stages added to it are run only by a terminal operation,
+     * all of them in one pass over every chunk, with no intermediate lists.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link List} to process
+     * @return Pipeline which passes elements of {@code values} as is
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Pipeline<T> pipeline(int threads, List<? extends T> values) {
+        return new Pipeline<>(threads, values, null, sink -> element -> sink.accept((T) element), null, "");
+    }
+
+    /**
+     * Starts a lazy pipeline over {@code values}, see {@link #pipeline(int, List)}. Lists are split by indices,
+     * other collections by their {@link Collection#spliterator() spliterators}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link Collection} to process
+     * @return Pipeline which passes elements of {@code values} as is
+     */
+    public <T> Pipeline<T> pipeline(int threads, Collection<? extends T> values) {
+        if (values instanceof List) {
+            return pipeline(threads, (List<? extends T>) values);
+        }
+        return pipeline(threads, (Iterable<? extends T>) values);
+    }
+
+    /**
+     * Starts a lazy pipeline over {@code values}, see {@link #pipeline(int, List)}. Every terminal operation
+     * splits a new {@link Iterable#spliterator() spliterator} of {@code values}.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param values  {@link Iterable} to process
+     * @return Pipeline which passes elements of {@code values} as is
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Pipeline<T> pipeline(int threads, Iterable<? extends T> values) {
+        return new Pipeline<>(threads, null, values::spliterator, sink -> element -> sink.accept((T) element), null, "");
+    }
+
+    /**
+     * Starts a lazy pipeline over elements of {@code source}, see {@link #pipeline(int, List)}.
+     * The source is split by {@link Spliterator#trySplit trySplit}, and it can be traversed only once,
+     * so only one terminal operation may be run on the pipeline and on pipelines made from it.
+     *
+     * @param threads Number of threads. {@code 1} if the argument value is less than {@code 1}
+     * @param source  {@link Spliterator} of elements to process
+     * @return Pipeline which passes elements of {@code source} as is
+     * @throws IllegalStateException from a terminal operation, if the source was used already
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Pipeline<T> pipeline(int threads, Spliterator<? extends T> source) {
+        final AtomicBoolean used = new AtomicBoolean();
+        return new Pipeline<>(threads, null, () -> {
+            if (used.getAndSet(true)) {
+                throw new IllegalStateException("Spliterator has been used already");
+            }
+            return source;
+        }, sink -> element -> sink.accept((T) element), null, "");
+    }
+
+    /**
+     * Looks for an element matching {@code predicate}. Threads check the shared result before every element,
+     * so they stop as soon as it is known that their part of the list can't change the answer.
+     * Chunks are taken in order, so when looking for the first element, chunks after it are not even started.
+     *
+     * @param first find the first matching element, otherwise any one
+     * @param key   operation to learn cost of, see {@link #split split}
+     * @return index of the found element or {@link #NOT_FOUND}
+     */
+    private <T> int search(int threads, final List<? extends T> values, final Predicate<? super T> predicate, final boolean first, CostKey key) throws InterruptedException {
+        final AtomicInteger found = new AtomicInteger(NOT_FOUND);
+        final Split split = split(threads, values.size(), key);
+        final List<? extends T> list = randomAccess(values, split);
+        forChunks(split, (chunk, from, to) -> {
+            int i = from;
+            if (first ? from < found.get() : found.get() == NOT_FOUND) {
+                ListIterator<? extends T> it = list.listIterator(from);
+                while (i < to && (first ? i < found.get() : found.get() == NOT_FOUND)) {
+                    if (predicate.test(it.next())) {
+                        found.accumulateAndGet(i, Math::min);
+                    }
+                    i++;
+                }
+            }
+            split.skipped(to - i);
+        });
+        return found.get();
+    }
+
+    /**
+     * Part of a chunked operation. Writes its result to its own cell of a results array,
+     * or to its own range of a shared array, so nothing is allocated per element.
+     */
+    private interface ChunkTask {
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * Partition of {@code [0, size)} into {@code chunks} consecutive ranges of nearly equal size,
+     * which {@code workers} threads take one by one. A thread which got cheap chunks takes more of them,
+     * so a few expensive elements don't make everybody wait for the one thread which got them.
+     */
+    private static class Split {
+        private final CostKey key;
+        private final int size;
+        private final int chunks;
+        private final int workers;
+        private final AtomicLong busy = new AtomicLong();
+        private final AtomicLong processed;
+        /**
+         * Parts of a spliterator, one per chunk, or {@code null} if chunks are ranges of indices.
+         */
+        private final List<Spliterator<?>> parts;
+
+        private Split(CostKey key, int size, int chunks, int workers, List<Spliterator<?>> parts) {
+            this.key = key;
+            this.size = size;
+            this.chunks = chunks;
+            this.workers = workers;
+            this.processed = new AtomicLong(size);
+            this.parts = parts;
+        }
+
+        private int from(int chunk) {
+            return (int) ((long) size * chunk / chunks);
+        }
+
+        /**
+         * Tells that a chunk stopped early, so its time is not counted as the time of all its elements.
+         */
+        private void skipped(int elements) {
+            if (elements > 0) {
+                processed.addAndGet(-elements);
+            }
+        }
+    }
+
+    /**
+     * Chooses how to split work of an operation. The time the operation took per element on previous calls
+     * is known for {@code key}, so the total time is estimated. Work estimated to take less than
+     * {@link #SEQUENTIAL_NANOS} is done in the calling thread. Otherwise it is split into up to
+     * {@link #OVERSPLIT} chunks per thread, but no shorter than {@link #CHUNK_NANOS} each.
+     * Operations which were never run are split as if they were expensive.
+     *
+     * @param threads requested number of threads, never exceeded
+     * @param size    number of elements
+     * @param key     operation, see {@link CostKey}, or {@code null} if its cost
+     *                should not be learned
+     */
+    private Split split(int threads, int size, CostKey key) {
+        int chunks = (int) Math.min(size, (long) Math.max(1, threads) * OVERSPLIT);
+        int workers = Math.min(Math.max(1, threads), chunks);
+        Double cost = cost(key);
+        if (cost != null) {
+            double total = cost * size;
+            chunks = (int) Math.max(Math.min(chunks, total / CHUNK_NANOS), Math.min(size, 1));
+            workers = (int) Math.max(Math.min(Math.min(workers, chunks), total / SEQUENTIAL_NANOS), 1);
+        }
+        if (workers == 1) {
+            chunks = Math.min(chunks, 1);
+        }
+        return new Split(key, size, chunks, workers, null);
+    }
+
+    /**
+     * Runs {@code task} for every chunk of {@code split}, in the calling thread if there is only one worker,
+     * otherwise in new threads, and learns cost of the operation.
+     */
+    private void forChunks(final Split split, final ChunkTask task) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            long start = System.nanoTime();
+            for (int chunk; (chunk = next.getAndIncrement()) < split.chunks; ) {
+                task.run(chunk, split.from(chunk), split.from(chunk + 1));
+            }
+            split.busy.addAndGet(System.nanoTime() - start);
+        };
+        if (split.workers <= 1) {
+            worker.run();
+        } else {
+            List<Thread> threadList = new ArrayList<>(split.workers);
+            for (int i = 0; i < split.workers; i++) {
+                Thread thread = new Thread(worker);
+                threadList.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threadList) {
+                thread.join();
+            }
+        }
+        learn(split);
+    }
+
+    private void learn(Split split) {
+        long processed = split.processed.get();
+        if (split.key != null && processed > 0) {
+            double sample = (double) split.busy.get() / processed;
+            synchronized (costs) {
+                costs.computeIfAbsent(split.key.function, function -> new HashMap<>())
+                        .merge(split.key.operation, sample, (cost, next) -> cost + (next - cost) * LEARNING_RATE);
+            }
+        }
+    }
+
+    private Double cost(CostKey key) {
+        if (key == null) {
+            return null;
+        }
+        synchronized (costs) {
+            Map<String, Double> operations = costs.get(key.function);
+            return operations == null ? null : operations.get(key.operation);
+        }
+    }
+
+    /**
+     * Operation to learn cost of. One function may cost differently in different operations and for elements
+     * of different classes, e.g. {@link Comparator#naturalOrder()} for integers and for long strings,
+     * so the operation and class of the first element are part of the key.
+     * Only the name of the element class is kept, so that it can be unloaded.
+     */
+    private static class CostKey {
+        private final Class<?> function;
+        private final String operation;
+
+        private CostKey(Class<?> function, String operation) {
+            this.function = function;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * @param function  function applied to elements, {@code null} for built-in operations
+     * @param operation name of the operation
+     */
+    private static CostKey key(Object function, String operation) {
+        return new CostKey(function == null ? IterativeParallelism.class : function.getClass(), operation);
+    }
+
+    private static CostKey key(Object function, String operation, List<?> values) {
+        Object sample = values.isEmpty() ? null : values.get(0);
+        return key(function, sample == null ? operation : operation + ':' + sample.getClass().getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, R> R parallelWork(int threads, final List<? extends T> values, final Monoid<R> monoid, final Function<? super T, ? extends R> function, CostKey key) throws InterruptedException {
+        final Split split = split(threads, values.size(), key);
+        final List<? extends T> list = randomAccess(values, split);
+        final Object[] results = new Object[split.chunks];
+        forChunks(split, (chunk, from, to) -> {
+            R accumulator = monoid.get();
+            ListIterator<? extends T> it = list.listIterator(from);
+            for (int i = from; i < to; i++) {
+                accumulator = monoid.operate(accumulator, function.apply(it.next()));
+            }
+            results[chunk] = accumulator;
+        });
         R acc = monoid.get();
-        for (R result : results) {
-            acc = monoid.operate(acc, result);
+        for (Object result : results) {
+            acc = monoid.operate(acc, (R) result);
         }
         return acc;
     }
 
-    private static class Monoid<T> {
+    /**
+     * Copies a list without fast random access, such as {@link java.util.LinkedList}, to an array in one pass,
+     * if it is split into several chunks, so that chunks don't walk the list from its start to their first element.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> randomAccess(List<T> values, Split split) {
+        return values instanceof RandomAccess || split.chunks <= 1 ? values : (List<T>) Arrays.asList(values.toArray());
+    }
+
+    /**
+     * Splits {@code source} into {@code chunks} parts of nearly equal size, or fewer if there are fewer elements.
+     * <p>
+     * The source is split by {@link Spliterator#trySplit trySplit}, always splitting the largest part,
+     * until there are enough parts or no part can be split. Some sources don't split into halves:
+     * iterator-backed spliterators of linked collections split off growing prefixes and leave nearly everything
+     * in the last part. If the largest part is more than twice as large as it should be, or sizes of parts
+     * are not known, elements of all parts are copied to an array in one pass instead,
+     * like lists without random access, and the array is split by indices.
+     *
+     * @return parts in the encounter order
+     */
+    private static List<Spliterator<?>> partition(Spliterator<?> source, int chunks) {
+        if (chunks <= 1) {
+            return Collections.singletonList(source);
+        }
+        List<Spliterator<?>> parts = new ArrayList<>(chunks);
+        parts.add(source);
+        Set<Spliterator<?>> unsplittable = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (parts.size() < chunks) {
+            int largest = -1;
+            for (int i = 0; i < parts.size(); i++) {
+                if (!unsplittable.contains(parts.get(i))
+                        && (largest < 0 || parts.get(i).estimateSize() > parts.get(largest).estimateSize())) {
+                    largest = i;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            Spliterator<?> prefix = parts.get(largest).trySplit();
+            if (prefix == null) {
+                unsplittable.add(parts.get(largest));
+            } else {
+                parts.add(largest, prefix);
+            }
+        }
+        boolean sized = true;
+        long total = 0;
+        long largest = 0;
+        for (Spliterator<?> part : parts) {
+            sized &= part.hasCharacteristics(Spliterator.SIZED);
+            total += Math.min(part.estimateSize(), Integer.MAX_VALUE);
+            largest = Math.max(largest, part.estimateSize());
+        }
+        if (sized && largest <= 2 * Math.max(1, total / Math.max(1, Math.min(chunks, total)))) {
+            return parts;
+        }
+        List<Object> buffer = new ArrayList<>((int) Math.min(total, 1 << 16));
+        for (Spliterator<?> part : parts) {
+            part.forEachRemaining(buffer::add);
+        }
+        Object[] array = buffer.toArray();
+        int count = Math.max(1, Math.min(chunks, array.length));
+        List<Spliterator<?>> copied = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            copied.add(Spliterators.spliterator(array, (int) ((long) array.length * i / count),
+                    (int) ((long) array.length * (i + 1) / count), Spliterator.ORDERED));
+        }
+        return copied;
+    }
+
+    /**
+     * Chain of {@link #map map} and {@link #filter filter} stages over a list, ended by a terminal operation.
+     * Every chunk builds its own chain of stages and pushes its elements through it one by one,
+     * accumulating into its own result, and results of chunks are combined in order at the end.
+     * Pipelines are immutable, so one pipeline may be used for several terminal operations.
+     *
+     * @param <T> type of elements after the last stage
+     */
+    public class Pipeline<T> {
+        private final int threads;
+        private final List<?> values;
+        private final Supplier<? extends Spliterator<?>> source;
+        private final Function<Consumer<? super T>, Consumer<Object>> stages;
+        private final Object last;
+        private final String chain;
+
+        /**
+         * @param values list of elements, or {@code null} if elements are taken from {@code source}
+         * @param source supplier of a spliterator of elements for every terminal operation
+         * @param stages makes consumer of source elements which passes them through all stages to the given one
+         * @param last   function of the last stage, or {@code null} if there are no stages
+         * @param chain  names of all stages and classes of their functions, to learn cost of the pipeline by
+         */
+        private Pipeline(int threads, List<?> values, Supplier<? extends Spliterator<?>> source,
+                         Function<Consumer<? super T>, Consumer<Object>> stages, Object last, String chain) {
+            this.threads = threads;
+            this.values = values;
+            this.source = source;
+            this.stages = stages;
+            this.last = last;
+            this.chain = chain;
+        }
+
+        /**
+         * @param f Mapping function. See {@link Function Function}
+         * @return Pipeline of {@code f(a)}
+         */
+        public <R> Pipeline<R> map(Function<? super T, ? extends R> f) {
+            return new Pipeline<>(threads, values, source, sink -> stages.apply(element -> sink.accept(f.apply(element))),
+                    f, chain + stage("map", f));
+        }
+
+        /**
+         * @param predicate Filtering predicate. See {@link Predicate Predicate}
+         * @return Pipeline of elements for which {@code predicate} returns true
+         */
+        public Pipeline<T> filter(Predicate<? super T> predicate) {
+            return new Pipeline<>(threads, values, source, sink -> stages.apply(element -> {
+                if (predicate.test(element)) {
+                    sink.accept(element);
+                }
+            }), predicate, chain + stage("filter", predicate));
+        }
+
+        /**
+         * Maps elements and combines the results with {@code monoid}.
+         *
+         * @param f      Mapping function. See {@link Function Function}
+         * @param monoid Associative operation to combine results with, and its identity
+         * @return Combination of {@code f(a)} for all elements in order, identity if there are none
+         * @throws InterruptedException
+         */
+        @SuppressWarnings("unchecked")
+        public <R> R mapReduce(Function<? super T, ? extends R> f, Monoid<R> monoid) throws InterruptedException {
+            final Split split = divide(stage("mapReduce", f));
+            final Object[] results = new Object[split.chunks];
+            run(split, chunk -> {
+                results[chunk] = monoid.get();
+                return element -> results[chunk] = monoid.operate((R) results[chunk], f.apply(element));
+            });
+            R acc = monoid.get();
+            for (Object result : results) {
+                acc = monoid.operate(acc, (R) result);
+            }
+            return acc;
+        }
+
+        /**
+         * @param monoid Associative operation to combine elements with, and its identity
+         * @return Combination of all elements in order, identity if there are none
+         * @throws InterruptedException
+         */
+        public T reduce(Monoid<T> monoid) throws InterruptedException {
+            return mapReduce(Function.identity(), monoid);
+        }
+
+        /**
+         * @return Number of elements passed through all stages
+         * @throws InterruptedException
+         */
+        public long count() throws InterruptedException {
+            final Split split = divide("count");
+            final long[] counts = new long[split.chunks];
+            run(split, chunk -> element -> counts[chunk]++);
+            long count = 0;
+            for (long value : counts) {
+                count += value;
+            }
+            return count;
+        }
+
+        /**
+         * Collects elements to a list. Every chunk collects its elements to its own array,
+         * and the list is a view of these arrays, so elements are not copied again.
+         *
+         * @return Unmodifiable list of elements passed through all stages, in order
+         * @throws InterruptedException
+         */
+        public List<T> toList() throws InterruptedException {
+            final Split split = divide("toList");
+            final Object[][] chunks = new Object[split.chunks][];
+            final int[] sizes = new int[chunks.length];
+            run(split, chunk -> {
+                chunks[chunk] = new Object[16];
+                return element -> {
+                    if (sizes[chunk] == chunks[chunk].length) {
+                        chunks[chunk] = Arrays.copyOf(chunks[chunk], sizes[chunk] * 2);
+                    }
+                    chunks[chunk][sizes[chunk]++] = element;
+                };
+            });
+            return new ChunkedList<>(chunks, sizes);
+        }
+
+        /**
+         * @return Concatenated string representations of elements
+         * @throws InterruptedException
+         */
+        public String join() throws InterruptedException {
+            return join("", "", "");
+        }
+
+        /**
+         * Joins string representations of elements with {@code separator}, like {@link String#join String.join}.
+         * Every chunk joins its elements to its own builder, and the builders are joined in order at the end.
+         *
+         * @param separator Separator put between elements
+         * @param prefix    String put before the first element
+         * @param suffix    String put after the last element
+         * @return Joined string
+         * @throws InterruptedException
+         */
+        public String join(CharSequence separator, CharSequence prefix, CharSequence suffix) throws InterruptedException {
+            final Split split = divide("join");
+            final StringBuilder[] parts = new StringBuilder[split.chunks];
+            final long[] counts = new long[parts.length];
+            run(split, chunk -> {
+                parts[chunk] = new StringBuilder();
+                return element -> {
+                    if (counts[chunk]++ > 0) {
+                        parts[chunk].append(separator);
+                    }
+                    parts[chunk].append(element);
+                };
+            });
+            StringBuilder result = new StringBuilder(prefix);
+            boolean empty = true;
+            for (int chunk = 0; chunk < parts.length; chunk++) {
+                if (counts[chunk] > 0) {
+                    if (!empty) {
+                        result.append(separator);
+                    }
+                    result.append(parts[chunk]);
+                    empty = false;
+                }
+            }
+            return result.append(suffix).toString();
+        }
+
+        /**
+         * @param predicate Checking predicate. See {@link Predicate Predicate}
+         * @return True if {@code predicate::test} returns true for all elements
+         * @throws InterruptedException
+         */
+        public boolean all(Predicate<? super T> predicate) throws InterruptedException {
+            return !any(predicate.negate());
+        }
+
+        /**
+         * Threads stop as soon as any of them finds a matching element.
+         *
+         * @param predicate Checking predicate. See {@link Predicate Predicate}
+         * @return True if {@code predicate::test} returns true for any element
+         * @throws InterruptedException
+         */
+        public boolean any(Predicate<? super T> predicate) throws InterruptedException {
+            return !filter(predicate).find(false).isEmpty();
+        }
+
+        /**
+         * Finds some element matching {@code predicate}, not necessarily the first one.
+         * Threads stop as soon as any of them finds one.
+         *
+         * @param predicate Checking predicate. See {@link Predicate Predicate}
+         * @return Element for which {@code predicate::test} returns true, or empty if there is none
+         * @throws InterruptedException
+         * @throws NullPointerException if the element found is {@code null}
+         */
+        public Optional<T> findAny(Predicate<? super T> predicate) throws InterruptedException {
+            List<T> found = filter(predicate).find(false);
+            return found.isEmpty() ? Optional.empty() : Optional.of(found.get(0));
+        }
+
+        /**
+         * Finds the first element matching {@code predicate}.
+         * Chunks are taken in order, and threads stop at chunks after the one where an element was found.
+         *
+         * @param predicate Checking predicate. See {@link Predicate Predicate}
+         * @return First element for which {@code predicate::test} returns true, or empty if there is none
+         * @throws InterruptedException
+         * @throws NullPointerException if the element found is {@code null}
+         */
+        public Optional<T> findFirst(Predicate<? super T> predicate) throws InterruptedException {
+            List<T> found = filter(predicate).find(true);
+            return found.isEmpty() ? Optional.empty() : Optional.of(found.get(0));
+        }
+
+        /**
+         * Takes the first element passed through all stages in some chunk, and stops other chunks
+         * which can't change the answer.
+         *
+         * @param first find the element of the first chunk which has one, otherwise of any chunk
+         * @return list of the found element, empty if there is none
+         */
+        @SuppressWarnings("unchecked")
+        private List<T> find(final boolean first) throws InterruptedException {
+            final Split split = divide(first ? "findFirst" : "findAny");
+            final AtomicInteger found = new AtomicInteger(NOT_FOUND);
+            final Object[] results = new Object[split.chunks];
+            run(split, chunk -> element -> {
+                results[chunk] = element;
+                found.accumulateAndGet(chunk, Math::min);
+            }, chunk -> first ? found.get() <= chunk : found.get() != NOT_FOUND);
+            int chunk = found.get();
+            return chunk == NOT_FOUND ? Collections.emptyList() : Collections.singletonList((T) results[chunk]);
+        }
+
+        /**
+         * Groups elements into lists by key. See {@link #groupingBy(Function, Function, Monoid)}.
+         *
+         * @param classifier Function returning key of an element
+         * @return Map from every key to the list of elements with this key, in order
+         * @throws InterruptedException
+         */
+        public <K> Map<K, List<T>> groupingBy(Function<? super T, ? extends K> classifier) throws InterruptedException {
+            List<Map<K, List<T>>> maps = collectMaps(map -> element ->
+                    map.computeIfAbsent(classifier.apply(element), key -> new ArrayList<>()).add(element),
+                    stage("groupingBy", classifier));
+            return merge(maps, (a, b) -> {
+                a.addAll(b);
+                return a;
+            });
+        }
+
+        /**
+         * Groups elements by key, combining {@code f} of elements with the same key with {@code monoid}.
+         * Every chunk fills its own {@link HashMap}, so threads never share a map, and maps of chunks
+         * are merged in order at the end.
+         *
+         * @param classifier Function returning key of an element
+         * @param f          Mapping function. See {@link Function Function}
+         * @param monoid     Associative operation to combine results with, and its identity
+         * @return Map from every key to the combination of {@code f(a)} for elements with this key, in order
+         * @throws InterruptedException
+         */
+        public <K, R> Map<K, R> groupingBy(Function<? super T, ? extends K> classifier, Function<? super T, ? extends R> f,
+                                           Monoid<R> monoid) throws InterruptedException {
+            // results of f are combined with identity first, so that a mutable monoid never changes them
+            List<Map<K, R>> maps = collectMaps(map -> element ->
+                    map.merge(classifier.apply(element), monoid.operate(monoid.get(), f.apply(element)), monoid::operate),
+                    stage("groupingBy", classifier) + stage("map", f));
+            return merge(maps, monoid::operate);
+        }
+
+        private <K, V> List<Map<K, V>> collectMaps(Function<Map<K, V>, Consumer<T>> accumulator, String operation)
+                throws InterruptedException {
+            final Split split = divide(operation);
+            final List<Map<K, V>> maps = new ArrayList<>(Collections.nCopies(split.chunks, null));
+            run(split, chunk -> {
+                Map<K, V> map = new HashMap<>();
+                maps.set(chunk, map);
+                return accumulator.apply(map);
+            });
+            return maps;
+        }
+
+        private <K, V> Map<K, V> merge(List<Map<K, V>> maps, BinaryOperator<V> operator) {
+            Map<K, V> result = new HashMap<>();
+            for (Map<K, V> map : maps) {
+                for (Map.Entry<K, V> entry : map.entrySet()) {
+                    result.merge(entry.getKey(), entry.getValue(), operator);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Pushes every chunk of the source through the stages to the consumer made for it by {@code terminal}.
+         */
+        private void run(final Split split, final IntFunction<Consumer<? super T>> terminal) throws InterruptedException {
+            run(split, terminal, null);
+        }
+
+        /**
+         * Same as {@link #run(Split, IntFunction)}, but a chunk stops as soon as {@code stopped} returns true for it.
+         * It is checked before every element of the source.
+         *
+         * @param stopped tells whether a chunk should stop, or {@code null} if chunks never stop early
+         */
+        private void run(final Split split, final IntFunction<Consumer<? super T>> terminal,
+                         final IntPredicate stopped) throws InterruptedException {
+            final List<?> list = split.parts == null ? randomAccess(values, split) : null;
+            forChunks(split, (chunk, from, to) -> {
+                Consumer<Object> sink = stages.apply(terminal.apply(chunk));
+                if (split.parts != null) {
+                    Spliterator<?> part = split.parts.get(chunk);
+                    if (stopped == null) {
+                        part.forEachRemaining(sink);
+                    } else {
+                        while (!stopped.test(chunk) && part.tryAdvance(sink)) {
+                            // next element
+                        }
+                        split.skipped((int) Math.min(part.estimateSize(), Integer.MAX_VALUE));
+                    }
+                    return;
+                }
+                ListIterator<?> it = list.listIterator(from);
+                int i = from;
+                for (; i < to && (stopped == null || !stopped.test(chunk)); i++) {
+                    sink.accept(it.next());
+                }
+                split.skipped(to - i);
+            });
+        }
+
+        /**
+         * Splits a list by indices, and other sources by {@link #partition partition} of a new spliterator.
+         * Cost of the pipeline is learned per chain of stages and terminal operation, and per class of elements
+         * for lists. It is learned only if the number of elements is known exactly.
+         *
+         * @param operation name of the terminal operation and classes of its functions
+         */
+        private Split divide(String operation) {
+            if (values != null) {
+                return split(threads, values.size(), key(last, chain + operation, values));
+            }
+            Spliterator<?> spliterator = source.get();
+            CostKey key = key(last, chain + operation);
+            int size = (int) Math.min(spliterator.estimateSize(), Integer.MAX_VALUE);
+            Split planned = split(threads, size, spliterator.hasCharacteristics(Spliterator.SIZED) ? key : null);
+            List<Spliterator<?>> parts = partition(spliterator, Math.max(1, planned.chunks));
+            long total = 0;
+            for (Spliterator<?> part : parts) {
+                if (!part.hasCharacteristics(Spliterator.SIZED)) {
+                    key = null;
+                }
+                total += part.estimateSize();
+            }
+            size = (int) Math.min(total, Integer.MAX_VALUE);
+            return new Split(key, size, parts.size(), Math.min(planned.workers, parts.size()), parts);
+        }
+
+        private String stage(String name, Object function) {
+            return name + '(' + function.getClass().getName() + ").";
+        }
+    }
+
+    /**
+     * Associative operation with its identity element, used to combine results of chunks.
+     *
+     * @param <T> type of values
+     */
+    public static class Monoid<T> {
         private final Supplier<T> supplier;
         private final BinaryOperator<T> operator;
 
@@ -0,0 +1,186 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import ru.ifmo.ctddev.poperechnyi.parallelmapper.ParallelMapperImpl.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * One call of {@link ParallelMapperImpl#map}.
+ * <p>
+ * Instead of a task per element, a few runners are submitted and each of them claims ranges of indices
+ * from a shared cursor until the list is exhausted. The first range of a runner is one element long,
+ * then ranges grow so that one takes about {@link #TARGET_NANOS}, according to the average cost of an element
+ * measured so far. A range is never longer than a half of the remaining elements divided by the number of runners,
+ * so the tail of the list is still shared between all runners.
+ * Results are stored right into the array which is returned to the caller,
+ * or passed to a consumer as soon as they are ready if the call is streaming.
+ * <p>
+ * The call stops as soon as its future is completed in any other way: if the function throws,
+ * or the future is cancelled or failed from outside. Runners check the future before every element,
+ * and threads currently running the function of this call are interrupted.
+ * <p>
+ * A runner gives way to other calls when it has worked for {@code weight} {@link Scheduler#quantum() quanta}:
+ * it puts itself to the end of the queue of its priority, so concurrent calls of the same priority
+ * share the threads in proportion to their weights, whatever their sizes are.
+ */
+class MapCall<T, R> {
+    private static final long TARGET_NANOS = 100_000;
+
+    private final Function<? super T, ? extends R> f;
+    private final List<? extends T> args;
+    private final int size;
+    private final int width;
+    private final Object[] results;
+    private final ObjIntConsumer<? super R> consumer;
+    private final Priority priority;
+    private final int weight;
+    private Scheduler scheduler;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final CompletableFuture<List<R>> future = new CompletableFuture<>();
+    private final List<Thread> running = new ArrayList<>();
+    private volatile long nanosPerElement = -1;
+
+    /**
+     * @param f        function to apply
+     * @param args     arguments
+     * @param width    number of runners
+     * @param consumer receives every result with its index instead of storing it, may be {@code null}
+     * @param priority priority of the call
+     * @param weight   share of threads relatively to other calls of the same priority, at least {@code 1}
+     */
+    MapCall(Function<? super T, ? extends R> f, List<? extends T> args, int width, ObjIntConsumer<? super R> consumer,
+            Priority priority, int weight) {
+        this.f = f;
+        this.args = args;
+        this.size = args.size();
+        this.width = Math.max(1, Math.min(width, size));
+        this.consumer = consumer;
+        this.results = consumer == null ? new Object[size] : null;
+        this.priority = priority;
+        this.weight = Math.max(1, weight);
+        future.whenComplete((result, e) -> {
+            if (e != null) {
+                interrupt();
+            }
+        });
+        if (size == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * @return number of elements
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Completing the future in any way stops the call.
+     *
+     * @return future completed with results, or with {@code null} for a streaming call
+     */
+    CompletableFuture<List<R>> future() {
+        return future;
+    }
+
+    /**
+     * Submits runners to the scheduler.
+     *
+     * @param scheduler scheduler to run on
+     */
+    void start(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        for (int i = 0; i < width && size > 0; i++) {
+            scheduler.execute(this::run, priority);
+        }
+    }
+
+    private void run() {
+        synchronized (running) {
+            if (future.isDone()) {
+                return;
+            }
+            running.add(Thread.currentThread());
+        }
+        try {
+            long quantum = scheduler.quantum();
+            long deadline = quantum > Long.MAX_VALUE / weight ? Long.MAX_VALUE : quantum * weight;
+            long started = System.nanoTime();
+            int length = nanosPerElement < 0 ? 1 : nextLength();
+            while (!future.isDone()) {
+                if (System.nanoTime() - started > deadline) {
+                    scheduler.requeue(this::run, priority);
+                    return;
+                }
+                int from = cursor.getAndAdd(length);
+                if (from >= size) {
+                    return;
+                }
+                int to = Math.min(size, from + length);
+                long start = System.nanoTime();
+                apply(from, to);
+                long spent = System.nanoTime() - start;
+
+                long average = nanosPerElement;
+                long measured = Math.max(1, spent / (to - from));
+                nanosPerElement = average < 0 ? measured : (3 * average + measured) / 4;
+                length = nextLength();
+
+                if (done.addAndGet(to - from) == size) {
+                    complete();
+                }
+            }
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        } finally {
+            synchronized (running) {
+                running.remove(Thread.currentThread());
+                if (future.isCompletedExceptionally()) {
+                    // the interrupt was meant for this call only, not for the next task of the thread
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private void interrupt() {
+        synchronized (running) {
+            for (Thread thread : running) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private int nextLength() {
+        int remaining = size - cursor.get();
+        long target = Math.max(1, TARGET_NANOS / Math.max(1, nanosPerElement));
+        return (int) Math.max(1, Math.min(target, remaining / (2L * width)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete() {
+        future.complete(results == null ? null : (List<R>) Arrays.asList(results));
+    }
+
+    private void apply(int from, int to) {
+        ListIterator<? extends T> it = args instanceof RandomAccess ? null : args.listIterator(from);
+        for (int i = from; i < to && !future.isDone(); i++) {
+            R result = f.apply(it == null ? args.get(i) : it.next());
+            if (consumer == null) {
+                results[i] = result;
+            } else {
+                consumer.accept(result, i);
+            }
+        }
+    }
+}
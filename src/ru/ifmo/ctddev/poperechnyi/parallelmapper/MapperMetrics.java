@@ -0,0 +1,395 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link ParallelMapperImpl}. Updated from all threads through {@link LongAdder LongAdders},
+ * so they are cheap enough to be always on: a task or a call costs a few uncontended additions.
+ */
+class MapperMetrics implements MapperMetricsMBean {
+    private static final int BUCKETS = 40;
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final long start = System.nanoTime();
+    private final int id = ids.incrementAndGet();
+    private final LongAdder threads = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder elements = new LongAdder();
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder idle = new LongAdder();
+    private final LongAdder waiting = new LongAdder();
+    private final LongAdder[] taskLatency = histogram();
+    private final LongAdder[] callLatency = histogram();
+
+    private static LongAdder[] histogram() {
+        LongAdder[] histogram = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+        return histogram;
+    }
+
+    private static void record(LongAdder[] histogram, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        histogram[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+    }
+
+    void threadStarted() {
+        threads.increment();
+    }
+
+    void threadStopped() {
+        threads.decrement();
+    }
+
+    void queued() {
+        queued.increment();
+    }
+
+    void dequeued() {
+        queued.decrement();
+    }
+
+    /**
+     * @param nanos time the task ran
+     */
+    void ran(long nanos) {
+        tasks.increment();
+        busy.add(nanos);
+        record(taskLatency, nanos);
+    }
+
+    /**
+     * @param nanos time a thread was parked
+     */
+    void idle(long nanos) {
+        idle.add(nanos);
+    }
+
+    /**
+     * @param nanos time a caller was blocked waiting for a call
+     */
+    void waited(long nanos) {
+        waiting.add(nanos);
+    }
+
+    void callStarted() {
+        started.increment();
+    }
+
+    /**
+     * @param size  number of elements of the call
+     * @param nanos time from start to finish of the call
+     * @param ok    {@code false} if the call failed or was cancelled
+     */
+    void callFinished(int size, long nanos, boolean ok) {
+        calls.increment();
+        if (ok) {
+            elements.add(size);
+        } else {
+            failed.increment();
+        }
+        record(callLatency, nanos);
+    }
+
+    /**
+     * Registers metrics in the platform MBean server under a name unique for this mapper.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name());
+        } catch (JMException e) {
+            System.out.println("Metrics couldn't be registered: " + e.getMessage());
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name());
+        } catch (JMException ignored) {
+        }
+    }
+
+    private ObjectName name() throws MalformedObjectNameException {
+        return new ObjectName(MapperMetrics.class.getPackage().getName() + ":type=ParallelMapper,id=" + id);
+    }
+
+    /**
+     * @return values of all counters at one moment
+     */
+    MapperMetricsMBean snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getThreads() {
+        return threads.sum();
+    }
+
+    @Override
+    public long getQueuedTasks() {
+        return Math.max(0, queued.sum());
+    }
+
+    @Override
+    public long getActiveCalls() {
+        return Math.max(0, started.sum() - calls.sum());
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getFailedCalls() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getElements() {
+        return elements.sum();
+    }
+
+    @Override
+    public long getTasks() {
+        return tasks.sum();
+    }
+
+    private double seconds() {
+        return Math.max(1, System.nanoTime() - start) / 1e9;
+    }
+
+    @Override
+    public double getTasksPerSecond() {
+        return getTasks() / seconds();
+    }
+
+    @Override
+    public double getElementsPerSecond() {
+        return getElements() / seconds();
+    }
+
+    @Override
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(busy.sum());
+    }
+
+    @Override
+    public long getIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(idle.sum());
+    }
+
+    @Override
+    public double getBusyRatio() {
+        long busy = this.busy.sum();
+        return busy / (double) Math.max(1, busy + idle.sum());
+    }
+
+    @Override
+    public long getWaitingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waiting.sum());
+    }
+
+    private static long[] sums(LongAdder[] histogram) {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = histogram[i].sum();
+        }
+        return result;
+    }
+
+    @Override
+    public long[] getTaskLatencyHistogram() {
+        return sums(taskLatency);
+    }
+
+    @Override
+    public long[] getCallLatencyHistogram() {
+        return sums(callLatency);
+    }
+
+    private static long percentile(long[] histogram, double p) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen > 0 && seen >= p * total) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getTaskLatencyP99Micros() {
+        return percentile(getTaskLatencyHistogram(), 0.99);
+    }
+
+    @Override
+    public long getCallLatencyP50Micros() {
+        return percentile(getCallLatencyHistogram(), 0.5);
+    }
+
+    @Override
+    public long getCallLatencyP99Micros() {
+        return percentile(getCallLatencyHistogram(), 0.99);
+    }
+
+    @Override
+    public String toString() {
+        return toString(this);
+    }
+
+    private static String toString(MapperMetricsMBean m) {
+        return String.format("%d threads (%.0f%% busy), %d queued tasks, %d active calls, %d calls (%d failed), " +
+                        "%.1f tasks/s, %.1f elements/s, task p99 %d us, call p50 %d us, call p99 %d us, waiting %d ms",
+                m.getThreads(), 100 * m.getBusyRatio(), m.getQueuedTasks(), m.getActiveCalls(), m.getCalls(),
+                m.getFailedCalls(), m.getTasksPerSecond(), m.getElementsPerSecond(), m.getTaskLatencyP99Micros(),
+                m.getCallLatencyP50Micros(), m.getCallLatencyP99Micros(), m.getWaitingMillis());
+    }
+
+    private static class Snapshot implements MapperMetricsMBean {
+        private final long threads;
+        private final long queuedTasks;
+        private final long activeCalls;
+        private final long calls;
+        private final long failedCalls;
+        private final long elements;
+        private final long tasks;
+        private final double tasksPerSecond;
+        private final double elementsPerSecond;
+        private final long busyMillis;
+        private final long idleMillis;
+        private final double busyRatio;
+        private final long waitingMillis;
+        private final long[] taskLatency;
+        private final long[] callLatency;
+
+        Snapshot(MapperMetricsMBean m) {
+            threads = m.getThreads();
+            queuedTasks = m.getQueuedTasks();
+            activeCalls = m.getActiveCalls();
+            calls = m.getCalls();
+            failedCalls = m.getFailedCalls();
+            elements = m.getElements();
+            tasks = m.getTasks();
+            tasksPerSecond = m.getTasksPerSecond();
+            elementsPerSecond = m.getElementsPerSecond();
+            busyMillis = m.getBusyMillis();
+            idleMillis = m.getIdleMillis();
+            busyRatio = m.getBusyRatio();
+            waitingMillis = m.getWaitingMillis();
+            taskLatency = m.getTaskLatencyHistogram();
+            callLatency = m.getCallLatencyHistogram();
+        }
+
+        @Override
+        public long getThreads() {
+            return threads;
+        }
+
+        @Override
+        public long getQueuedTasks() {
+            return queuedTasks;
+        }
+
+        @Override
+        public long getActiveCalls() {
+            return activeCalls;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls;
+        }
+
+        @Override
+        public long getFailedCalls() {
+            return failedCalls;
+        }
+
+        @Override
+        public long getElements() {
+            return elements;
+        }
+
+        @Override
+        public long getTasks() {
+            return tasks;
+        }
+
+        @Override
+        public double getTasksPerSecond() {
+            return tasksPerSecond;
+        }
+
+        @Override
+        public double getElementsPerSecond() {
+            return elementsPerSecond;
+        }
+
+        @Override
+        public long getBusyMillis() {
+            return busyMillis;
+        }
+
+        @Override
+        public long getIdleMillis() {
+            return idleMillis;
+        }
+
+        @Override
+        public double getBusyRatio() {
+            return busyRatio;
+        }
+
+        @Override
+        public long getWaitingMillis() {
+            return waitingMillis;
+        }
+
+        @Override
+        public long[] getTaskLatencyHistogram() {
+            return taskLatency.clone();
+        }
+
+        @Override
+        public long[] getCallLatencyHistogram() {
+            return callLatency.clone();
+        }
+
+        @Override
+        public long getTaskLatencyP99Micros() {
+            return percentile(taskLatency, 0.99);
+        }
+
+        @Override
+        public long getCallLatencyP50Micros() {
+            return percentile(callLatency, 0.5);
+        }
+
+        @Override
+        public long getCallLatencyP99Micros() {
+            return percentile(callLatency, 0.99);
+        }
+
+        @Override
+        public String toString() {
+            return MapperMetrics.toString(this);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+/**
+ * JMX view of counters of a {@link ParallelMapperImpl}, also returned by {@link ParallelMapperImpl#metrics()}.
+ * Times are summed over all threads.
+ */
+public interface MapperMetricsMBean {
+    /**
+     * @return number of threads running tasks now
+     */
+    long getThreads();
+
+    /**
+     * @return number of tasks waiting to be run
+     */
+    long getQueuedTasks();
+
+    /**
+     * @return number of map calls started but not finished
+     */
+    long getActiveCalls();
+
+    /**
+     * @return number of finished map calls, including failed ones
+     */
+    long getCalls();
+
+    /**
+     * @return number of map calls which failed, were cancelled or timed out
+     */
+    long getFailedCalls();
+
+    /**
+     * @return number of elements of successfully finished calls
+     */
+    long getElements();
+
+    /**
+     * @return number of tasks run, a task maps a part of a call
+     */
+    long getTasks();
+
+    double getTasksPerSecond();
+
+    double getElementsPerSecond();
+
+    /**
+     * @return time threads spent running tasks
+     */
+    long getBusyMillis();
+
+    /**
+     * @return time threads spent parked waiting for tasks
+     */
+    long getIdleMillis();
+
+    /**
+     * @return busy time divided by busy and idle time
+     */
+    double getBusyRatio();
+
+    /**
+     * @return time callers of blocking methods spent waiting for results
+     */
+    long getWaitingMillis();
+
+    /**
+     * @return number of tasks run for {@code [2^(i-1), 2^i)} microseconds, for every {@code i}
+     */
+    long[] getTaskLatencyHistogram();
+
+    /**
+     * @return number of calls finished in {@code [2^(i-1), 2^i)} microseconds, for every {@code i}
+     */
+    long[] getCallLatencyHistogram();
+
+    /**
+     * @return upper bound of 99th percentile of running time of a task, in microseconds
+     */
+    long getTaskLatencyP99Micros();
+
+    /**
+     * @return upper bound of median duration of a call, in microseconds
+     */
+    long getCallLatencyP50Micros();
+
+    /**
+     * @return upper bound of 99th percentile of duration of a call, in microseconds
+     */
+    long getCallLatencyP99Micros();
+}
@@ -0,0 +1,112 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Lazily maps elements of a source iterator on a {@link ParallelMapperImpl}, keeping their order.
+ * <p>
+ * Elements are read from the source in the thread which consumes results, in batches of a quarter of the window,
+ * and every batch is mapped by {@link ParallelMapperImpl#mapAsync(Function, List) mapAsync}.
+ * New batches are read only when there is room for them in the window, so at most {@code window} elements
+ * and results are held at once, and a slow consumer slows down reading of the source.
+ */
+class OrderedMapIterator<T, R> implements Iterator<R> {
+    private static final int BATCHES = 4;
+
+    private final ParallelMapperImpl mapper;
+    private final Function<? super T, ? extends R> f;
+    private final Iterator<? extends T> source;
+    private final int window;
+    private final int batch;
+    private final Queue<CompletableFuture<List<R>>> pending = new ArrayDeque<>();
+    private Iterator<R> current = Collections.emptyIterator();
+    private int held = 0;
+    private boolean cancelled = false;
+
+    /**
+     * @param mapper mapper to run on
+     * @param f      function to apply
+     * @param source source of arguments
+     * @param window maximal number of elements read from the source, but not consumed yet, at least {@code 1}
+     */
+    OrderedMapIterator(ParallelMapperImpl mapper, Function<? super T, ? extends R> f, Iterator<? extends T> source, int window) {
+        this.mapper = mapper;
+        this.f = f;
+        this.source = source;
+        this.window = Math.max(1, window);
+        this.batch = Math.max(1, window / BATCHES);
+    }
+
+    private void fill() {
+        // the rest of the batch being consumed is in the window too
+        while (!cancelled && held <= window - batch && source.hasNext()) {
+            // huge windows mean no limit, the source may be much shorter than a batch
+            List<T> args = new ArrayList<>(Math.min(batch, 1024));
+            while (args.size() < batch && source.hasNext()) {
+                args.add(source.next());
+            }
+            held += args.size();
+            pending.add(mapper.mapAsync(f, args));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        while (!current.hasNext()) {
+            CompletableFuture<List<R>> next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            current = await(next).iterator();
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public R next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        held--;
+        return current.next();
+    }
+
+    private List<R> await(CompletableFuture<List<R>> future) {
+        try {
+            return mapper.await(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new IllegalStateException("Interrupted while waiting for results", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("No timeout was set", e);
+        } catch (RuntimeException | Error e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels batches in progress and stops reading the source. The iterator has no more elements then.
+     */
+    void cancel() {
+        for (CompletableFuture<List<R>> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        current = Collections.emptyIterator();
+        held = 0;
+        cancelled = true;
+    }
+}
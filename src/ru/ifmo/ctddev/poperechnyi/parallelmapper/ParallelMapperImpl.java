@@ -1,96 +1,334 @@
 package ru.ifmo.ctddev.poperechnyi.parallelmapper;
 
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class ParallelMapperImpl implements info.kgeorgiy.java.advanced.mapper.ParallelMapper {
-    final private Thread[] threads;
-    final private Queue<Consumer<Void>> queue;
-    private boolean interrupted = false;
+    private static final ScheduledExecutorService timer = timer();
+
+    final private MapperMetrics metrics = new MapperMetrics();
+    final private Scheduler pool;
+    final private Set<CompletableFuture<?>> active = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Priority class of a call. Threads of a pooled mapper take work of a higher priority first,
+     * but still give a small share to lower ones, so they aren't starved.
+     * Calls of the same priority share threads round-robin.
+     */
+    public enum Priority {
+        /** Small latency-sensitive calls. */
+        INTERACTIVE,
+        /** Default priority. */
+        NORMAL,
+        /** Large calls which should only use otherwise idle threads. */
+        BATCH
+    }
 
     public ParallelMapperImpl(int threads) {
-        queue = new ArrayDeque<>();
-        this.threads = new Thread[threads];
-        for (int i = 0; i < threads; ++i) {
-            this.threads[i] = new Thread(() -> {
-                while (!interrupted) {
-                    Consumer<Void> data = null;
-                    synchronized (queue) {
-                        if (!queue.isEmpty()) {
-                            data = queue.poll();
-                        }
-                    }
-                    if (data != null) {
-                        data.accept(null);
-                        synchronized (queue) {
-                            queue.notifyAll();
-                        }
-                    } else
-                    if (interrupted) {
-                        return;
-                    } else
-                        synchronized (queue) {
-                            try {
-                                queue.wait();
-                            } catch (InterruptedException e) {
-                                return;
-                            }
-                        }
-                }
-            });
-            this.threads[i].start();
-        }
+        this(metrics -> new WorkStealingPool(threads, metrics));
+    }
+
+    /**
+     * Creates mapper with elastic number of threads.
+     * Threads are started when tasks are submitted and no thread is idle, up to {@code maxThreads},
+     * and stop after being idle for {@code keepAlive}, down to {@code minThreads}.
+     * Idle threads are parked and every task wakes at most one of them.
+     *
+     * @param minThreads number of threads which are kept even if idle
+     * @param maxThreads maximal number of threads
+     * @param keepAlive time an idle thread waits for tasks before it stops
+     * @param unit unit of {@code keepAlive}
+     */
+    public ParallelMapperImpl(int minThreads, int maxThreads, long keepAlive, TimeUnit unit) {
+        this(metrics -> new WorkStealingPool(minThreads, maxThreads, keepAlive, unit, metrics));
+    }
+
+    /**
+     * Metrics are registered in the platform MBean server as
+     * {@code ru.ifmo.ctddev.poperechnyi.parallelmapper:type=ParallelMapper,id=<n>} until the mapper is closed.
+     */
+    private ParallelMapperImpl(Function<MapperMetrics, Scheduler> pool) {
+        this.pool = pool.apply(metrics);
+        metrics.register();
+    }
+
+    /**
+     * Creates mapper for functions which block, e.g. on I/O.
+     * Every element is mapped in its own virtual thread, see {@link ThreadPerTaskScheduler}.
+     * Only {@code limit} elements are mapped at once, but waiting ones don't occupy OS threads.
+     *
+     * @param limit maximal number of elements mapped at once, unlimited if not positive
+     * @return new mapper, it should be closed as usual
+     */
+    public static ParallelMapperImpl virtual(int limit) {
+        return new ParallelMapperImpl(metrics -> new ThreadPerTaskScheduler(limit, metrics));
     }
 
     /**
+     * Blocking version of {@link #mapAsync mapAsync}.
+     * Elements are mapped in ranges by one runner per worker of {@link WorkStealingPool}, see {@link MapCall}.
+     * Mapper created by {@link #virtual virtual} starts a runner per element, up to the limit.
+     * If {@code f} throws, the rest of the call is cancelled and the exception is rethrown.
      *
      * @param f function mapping member of type T to member of type R
      * @param args List of arguments of type T to map
      * @return mapped list of type R
-     * @throws InterruptedException
+     * @throws InterruptedException if interrupted while waiting, the call is cancelled then
+     * @throws CancellationException if the mapper is closed
      */
     @Override
     public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args) throws InterruptedException {
+        try {
+            return await(mapAsync(f, args));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("No timeout was set", e);
+        }
+    }
 
-        List<R> result = new ArrayList<>();
-        for (int i = 0; i < args.size(); ++i) {
-            result.add(null);
+    /**
+     * Same as {@link #map(Function, List)}, but cancels the call if it isn't finished in time.
+     *
+     * @param timeout maximal time of mapping, no timeout if not positive
+     * @param unit unit of {@code timeout}
+     * @throws TimeoutException if mapping took too long, the call is cancelled then
+     */
+    public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        return await(mapAsync(f, args, timeout, unit));
+    }
+
+    /**
+     * Same as {@link #map(Function, List)}, but with the given priority.
+     *
+     * @param priority priority class of the call
+     */
+    public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args, Priority priority)
+            throws InterruptedException {
+        try {
+            return await(mapAsync(f, args, priority));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("No timeout was set", e);
         }
-        final int[] counter = {0};
-
-        for (int i = 0; i < args.size(); ++i) {
-            final int current = i;
-            synchronized (queue) {
-                queue.add(aVoid ->  {
-                    result.set(current, f.apply(args.get(current)));
-                    synchronized (counter) {
-                        counter[0]++;
-                    }
-                });
+    }
+
+    /**
+     * Starts mapping and returns immediately.
+     * The future is completed by the worker which maps the last element,
+     * so dependent stages without an executor run on that worker.
+     * <p>
+     * The future is a handle of the call as well: cancelling it or completing it in any other way
+     * stops the call, and threads running {@code f} for it are interrupted.
+     * If {@code f} throws, the future fails with that exception and the call stops in the same way.
+     *
+     * @param f function mapping member of type T to member of type R
+     * @param args List of arguments of type T to map, mustn't be changed until the future is completed
+     * @return future of mapped list of type R
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args) {
+        return mapAsync(f, args, Priority.NORMAL, 1, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Same as {@link #mapAsync(Function, List)}, but fails the future with {@link TimeoutException}
+     * and stops the call if it isn't finished in time.
+     * As in the {@link #mapAsync(Function, List, Priority, int, long, TimeUnit) most general version},
+     * a timeout which is not positive means no timeout.
+     *
+     * @param timeout maximal time of mapping, no timeout if not positive
+     * @param unit unit of {@code timeout}
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                      long timeout, TimeUnit unit) {
+        return mapAsync(f, args, Priority.NORMAL, 1, timeout, unit);
+    }
+
+    /**
+     * Same as {@link #mapAsync(Function, List)}, but with the given priority.
+     *
+     * @param priority priority class of the call
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                      Priority priority) {
+        return mapAsync(f, args, priority, 1, 0, TimeUnit.NANOSECONDS);
+    }
 
+    /**
+     * Most general version of {@link #mapAsync(Function, List) mapAsync}.
+     * <p>
+     * Calls of one priority share threads of a pooled mapper in proportion to their weights,
+     * independently of their sizes: runners of a call give way to other calls after a short quantum of work,
+     * which is {@code weight} times longer for heavier calls. So a small call doesn't wait for a huge one
+     * started before it, while the huge one still uses all threads nobody else needs.
+     *
+     * @param priority priority class of the call
+     * @param weight share of threads relatively to other calls of the same priority, at least {@code 1}
+     * @param timeout maximal time of mapping, no timeout if not positive
+     * @param unit unit of {@code timeout}
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                      Priority priority, int weight, long timeout, TimeUnit unit) {
+        return start(new MapCall<>(f, args, pool.parallelism(), null, priority, weight), Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Starts mapping and passes every result to {@code consumer} on the worker which computed it, as soon as it is ready.
+     * Results come in no particular order and concurrently, together with their indices in {@code args}.
+     * Results are not collected, so memory doesn't depend on the size of {@code args}.
+     * Cancelling the future stops the call, as for {@link #mapAsync(Function, List) mapAsync}.
+     *
+     * @param f function mapping member of type T to member of type R
+     * @param args List of arguments of type T to map, mustn't be changed until the future is completed
+     * @param consumer thread-safe receiver of results and their indices
+     * @return future completed when every result is consumed
+     */
+    public <T, R> CompletableFuture<Void> mapStreaming(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                        ObjIntConsumer<? super R> consumer) {
+        CompletableFuture<List<R>> future = start(new MapCall<>(f, args, pool.parallelism(), consumer, Priority.NORMAL, 1), 0);
+        CompletableFuture<Void> result = future.thenApply(results -> null);
+        result.whenComplete((v, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
             }
+        });
+        return result;
+    }
+
+    /**
+     * @param timeout timeout in nanoseconds, {@code 0} if none
+     */
+    private <R> CompletableFuture<R> start(MapCall<?, ?> call, long timeout) {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<R> future = (CompletableFuture<R>) call.future();
+        long started = System.nanoTime();
+        metrics.callStarted();
+        active.add(future);
+        future.whenComplete((result, e) -> {
+            active.remove(future);
+            metrics.callFinished(call.size(), System.nanoTime() - started, e == null);
+        });
+        if (closed) {
+            future.completeExceptionally(new CancellationException("Mapper is closed"));
+            return future;
+        }
+        if (timeout > 0 && !future.isDone()) {
+            ScheduledFuture<?> task = timer.schedule(() -> {
+                future.completeExceptionally(new TimeoutException("Mapping took longer than " + timeout + " ns"));
+            }, timeout, TimeUnit.NANOSECONDS);
+            future.whenComplete((result, e) -> task.cancel(false));
+        }
+        call.start(pool);
+        return future;
+    }
+
+    /**
+     * Lazily maps elements of {@code source} in parallel and returns results in the same order.
+     * <p>
+     * At most {@code window} elements are read from {@code source} ahead of the consumer, so memory depends
+     * on the window, not on the length of the source, and the source is read no faster than results are consumed.
+     * The source is read only in the thread calling methods of the returned iterator.
+     * If {@code f} throws, the exception is rethrown by the iterator and mapping stops.
+     *
+     * @param f function mapping member of type T to member of type R
+     * @param source arguments, possibly more than fit in memory
+     * @param window maximal number of elements mapped ahead of the consumer, at least {@code 1}
+     * @return iterator over mapped values
+     */
+    public <T, R> Iterator<R> mapIterator(Function<? super T, ? extends R> f, Iterator<? extends T> source, int window) {
+        return new OrderedMapIterator<>(this, f, source, window);
+    }
+
+    /**
+     * Same as {@link #mapIterator mapIterator}, but for streams.
+     * Closing the returned stream cancels elements in progress and closes {@code source}.
+     *
+     * @param f function mapping member of type T to member of type R
+     * @param source arguments, possibly more than fit in memory
+     * @param window maximal number of elements mapped ahead of the consumer, at least {@code 1}
+     * @return sequential ordered stream of mapped values
+     */
+    public <T, R> Stream<R> mapStream(Function<? super T, ? extends R> f, Stream<? extends T> source, int window) {
+        OrderedMapIterator<T, R> results = new OrderedMapIterator<>(this, f, source.iterator(), window);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+                .onClose(results::cancel)
+                .onClose(source::close);
+    }
+
+    /**
+     * Waits for the future. A worker of this mapper runs pending tasks meanwhile instead of blocking.
+     * Exceptions of the call are rethrown as is.
+     *
+     * @throws InterruptedException if interrupted while waiting, the call is cancelled then
+     */
+    <R> R await(CompletableFuture<R> future) throws InterruptedException, TimeoutException {
+        while (!future.isDone() && pool.help()) {
+            // help
         }
-        synchronized (queue) {
-            queue.notifyAll();
-            while (counter[0] < args.size()) {
-                queue.wait();
+        long start = System.nanoTime();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
             }
+            throw new IllegalStateException(cause);
+        } finally {
+            metrics.waited(System.nanoTime() - start);
         }
-        return result;
     }
 
+    /**
+     * Counters are updated all the time and are also available through JMX, see {@link MapperMetricsMBean}.
+     *
+     * @return values of all counters at this moment
+     */
+    public MapperMetricsMBean metrics() {
+        return metrics.snapshot();
+    }
+
+    private static ScheduledExecutorService timer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "mapper-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Cancels all unfinished calls, stops the threads and unregisters metrics.
+     */
     @Override
     public void close() throws InterruptedException {
-        interrupted = true;
-        for (Thread thread : threads) {
-            thread.interrupt();
-            thread.join();
+        closed = true;
+        for (CompletableFuture<?> future : active) {
+            future.completeExceptionally(new CancellationException("Mapper is closed"));
+        }
+        try {
+            pool.close();
+        } finally {
+            metrics.unregister();
         }
     }
 }
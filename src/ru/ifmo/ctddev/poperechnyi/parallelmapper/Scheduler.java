@@ -0,0 +1,51 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import ru.ifmo.ctddev.poperechnyi.parallelmapper.ParallelMapperImpl.Priority;
+
+/**
+ * Runs tasks of {@link MapCall map calls}.
+ */
+interface Scheduler {
+    /**
+     * @return how many tasks of one call are worth running at once
+     */
+    int parallelism();
+
+    /**
+     * @return time in nanoseconds a task may run before it should {@link #requeue} itself
+     * to let other tasks run, {@link Long#MAX_VALUE} if tasks don't need to give way
+     */
+    long quantum();
+
+    /**
+     * Schedules task for execution.
+     *
+     * @param task     task to run
+     * @param priority priority of the task
+     */
+    void execute(Runnable task, Priority priority);
+
+    /**
+     * Schedules continuation of a task which has used up its {@link #quantum() quantum},
+     * after other tasks of the same priority which are already waiting.
+     *
+     * @param task     task to run
+     * @param priority priority of the task
+     */
+    void requeue(Runnable task, Priority priority);
+
+    /**
+     * Runs one pending task in the calling thread, if it is a thread of this scheduler.
+     * Lets a thread of the scheduler waiting for other tasks help instead of blocking.
+     *
+     * @return {@code false} if the thread can't help or there is nothing to run
+     */
+    boolean help();
+
+    /**
+     * Interrupts running tasks and waits for them to stop. Tasks which haven't started are dropped.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close() throws InterruptedException;
+}
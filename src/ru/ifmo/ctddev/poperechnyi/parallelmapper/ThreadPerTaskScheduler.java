@@ -0,0 +1,195 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import ru.ifmo.ctddev.poperechnyi.parallelmapper.ParallelMapperImpl.Priority;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a new thread for every task, for functions which mostly block.
+ * <p>
+ * Threads are virtual if the JVM supports them (Java 21+), so thousands of blocking tasks don't need
+ * thousands of OS threads. The number of tasks running at once is bounded by a semaphore, which a waiting
+ * virtual thread doesn't hold an OS thread for. The semaphore is fair, so waiting tasks of all calls get
+ * permits in order of arrival.
+ * <p>
+ * On older JVMs a thread per task would be an OS thread per task, so tasks of all calls are run by one pool
+ * of at most {@link #PLATFORM_LIMIT} platform daemon threads instead, in order of arrival.
+ * Idle threads of the pool stop after {@link #KEEP_ALIVE_SECONDS}.
+ * <p>
+ * Priorities are ignored: threads are preempted anyway and virtual threads have no priorities.
+ */
+class ThreadPerTaskScheduler implements Scheduler {
+    static final int PLATFORM_LIMIT = 256;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadFactory factory;
+    private final ThreadPoolExecutor platform;
+    private final int limit;
+    private final Semaphore permits;
+    private final Set<Thread> running = new HashSet<>();
+    private final Object lock = new Object();
+    private final MapperMetrics metrics;
+    private volatile boolean closed = false;
+
+    /**
+     * @param limit   maximal number of tasks running at once, unlimited if not positive
+     * @param metrics metrics to update
+     */
+    ThreadPerTaskScheduler(int limit, MapperMetrics metrics) {
+        this.metrics = metrics;
+        factory = virtualThreadFactory();
+        if (factory == null) {
+            this.limit = limit > 0 ? Math.min(limit, PLATFORM_LIMIT) : PLATFORM_LIMIT;
+            this.permits = null;
+            platform = new ThreadPoolExecutor(this.limit, this.limit, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), task -> {
+                        Thread thread = new Thread(() -> {
+                            metrics.threadStarted();
+                            try {
+                                task.run();
+                            } finally {
+                                metrics.threadStopped();
+                            }
+                        });
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            platform.allowCoreThreadTimeOut(true);
+        } else {
+            this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+            this.permits = limit > 0 ? new Semaphore(limit, true) : null;
+            platform = null;
+        }
+    }
+
+    /**
+     * @return {@code Thread.ofVirtual().factory()}, or {@code null} if there are no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builder.getMethod("name", String.class, long.class);
+            return (ThreadFactory) builder.getMethod("factory").invoke(name.invoke(virtual, "mapper-", 0L));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the limit, or the size of the platform pool, so that a call starts a task per element
+     * until it is reached
+     */
+    @Override
+    public int parallelism() {
+        return limit;
+    }
+
+    @Override
+    public long quantum() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void requeue(Runnable task, Priority priority) {
+        execute(task, priority);
+    }
+
+    @Override
+    public void execute(Runnable task, Priority priority) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            metrics.queued();
+            if (platform != null) {
+                platform.execute(() -> run(task));
+                return;
+            }
+            Thread thread = factory.newThread(() -> {
+                metrics.threadStarted();
+                boolean queued = true;
+                try {
+                    if (permits != null) {
+                        permits.acquire();
+                    }
+                    queued = false;
+                    try {
+                        run(task);
+                    } finally {
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // closed while waiting for a permit
+                } finally {
+                    if (queued) {
+                        metrics.dequeued();
+                    }
+                    metrics.threadStopped();
+                    synchronized (lock) {
+                        running.remove(Thread.currentThread());
+                    }
+                }
+            });
+            running.add(thread);
+            thread.start();
+        }
+    }
+
+    private void run(Runnable task) {
+        metrics.dequeued();
+        long start = System.nanoTime();
+        try {
+            if (!closed) {
+                task.run();
+            }
+        } finally {
+            metrics.ran(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Threads are not shared between tasks, so there is nothing to help with: blocking is cheap.
+     */
+    @Override
+    public boolean help() {
+        return false;
+    }
+
+    /**
+     * No task is started after {@code closed} is set: it is checked and threads are started under the same lock.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        List<Thread> threads;
+        synchronized (lock) {
+            closed = true;
+            threads = new ArrayList<>(running);
+            if (platform != null) {
+                for (int i = platform.shutdownNow().size(); i > 0; i--) {
+                    metrics.dequeued();
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (platform != null) {
+            platform.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import ru.ifmo.ctddev.poperechnyi.parallelmapper.ParallelMapperImpl.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Elastic set of workers, each with its own lock-free deques of tasks, one deque per {@link Priority priority}.
+ * <p>
+ * Tasks submitted from outside go to shared lock-free injection queues, tasks submitted by a worker
+ * go to the head of its own deque. A worker takes tasks from its own deque, then from the injection queue,
+ * then steals from the tails of other deques, so workers rarely compete for one queue.
+ * Tasks of a higher priority are taken first, but every {@link #AGING_PERIOD}-th task is looked for
+ * from the lowest priority up, so batch tasks are never starved.
+ * <p>
+ * Tasks are expected to run for at most {@link #QUANTUM_NANOS} and then {@link #requeue} the rest of their work
+ * to the tail of the injection queue, behind other waiting tasks, so concurrent calls share the workers round-robin.
+ * <p>
+ * Idle workers push themselves to a stack and {@link LockSupport#park park}. A submitted task unparks exactly
+ * one of them, the one which was idle for the shortest time. If nobody is idle, a new worker is started,
+ * unless there are {@code max} workers already. A worker which stayed idle for {@code keepAlive}
+ * stops if there are more than {@code min} workers.
+ */
+class WorkStealingPool implements Scheduler {
+    private static final long QUANTUM_NANOS = 1_000_000;
+    private static final int AGING_PERIOD = 16;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int min;
+    private final int max;
+    private final long keepAlive;
+    private final MapperMetrics metrics;
+    private final List<ConcurrentLinkedQueue<Runnable>> injection = new ArrayList<>(PRIORITIES.length);
+    private final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<>();
+    private final Object lock = new Object();
+    private volatile Worker[] workers = new Worker[0];
+    private volatile boolean closed = false;
+
+    /**
+     * Starts fixed number of workers.
+     *
+     * @param threads number of workers, at least one is started
+     * @param metrics metrics to update
+     */
+    WorkStealingPool(int threads, MapperMetrics metrics) {
+        this(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.NANOSECONDS, metrics);
+    }
+
+    /**
+     * Starts {@code min} workers.
+     *
+     * @param min       number of workers which are kept even if idle
+     * @param max       maximal number of workers, at least one
+     * @param keepAlive time an idle worker waits for tasks before it stops, if there are more than {@code min} workers
+     * @param unit      unit of {@code keepAlive}
+     * @param metrics   metrics to update
+     */
+    WorkStealingPool(int min, int max, long keepAlive, TimeUnit unit, MapperMetrics metrics) {
+        this.max = Math.max(1, max);
+        this.min = Math.max(0, Math.min(min, this.max));
+        this.keepAlive = Math.max(1, unit.toNanos(keepAlive));
+        this.metrics = metrics;
+        for (Priority ignored : PRIORITIES) {
+            injection.add(new ConcurrentLinkedQueue<>());
+        }
+        for (int i = 0; i < this.min; i++) {
+            grow();
+        }
+    }
+
+    /**
+     * @return maximal number of workers
+     */
+    @Override
+    public int parallelism() {
+        return max;
+    }
+
+    /**
+     * @return current number of workers
+     */
+    int size() {
+        return workers.length;
+    }
+
+    @Override
+    public long quantum() {
+        return QUANTUM_NANOS;
+    }
+
+    /**
+     * Schedules task for execution. Tasks submitted by a worker go to the head of its own deque.
+     */
+    @Override
+    public void execute(Runnable task, Priority priority) {
+        metrics.queued();
+        Worker self = current();
+        if (self != null) {
+            self.deques.get(priority.ordinal()).addFirst(task);
+        } else {
+            injection.get(priority.ordinal()).add(task);
+        }
+        signal();
+    }
+
+    /**
+     * Schedules task to the tail of the injection queue, after all tasks of the same priority waiting there.
+     */
+    @Override
+    public void requeue(Runnable task, Priority priority) {
+        metrics.queued();
+        injection.get(priority.ordinal()).add(task);
+        signal();
+    }
+
+    @Override
+    public boolean help() {
+        Worker self = current();
+        if (self == null) {
+            return false;
+        }
+        Runnable task = self.poll();
+        if (task == null) {
+            return false;
+        }
+        run(task);
+        return true;
+    }
+
+    private void run(Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            metrics.ran(System.nanoTime() - start);
+        }
+    }
+
+    private Worker current() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof Worker && ((Worker) thread).pool() == this ? (Worker) thread : null;
+    }
+
+    /**
+     * Wakes one idle worker or starts a new one.
+     * A worker is pushed to the stack before it checks queues for the last time,
+     * so either it sees the task or we see the worker.
+     * A worker retires only under {@code lock} and only if there are no tasks, so either it sees the task
+     * or we see that it is gone and start a new one: the number of workers is checked under the same lock.
+     */
+    private void signal() {
+        for (Worker worker; (worker = idle.pollFirst()) != null; ) {
+            if (worker.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+        grow();
+    }
+
+    private void grow() {
+        synchronized (lock) {
+            if (!closed && workers.length < max) {
+                Worker worker = new Worker();
+                Worker[] grown = Arrays.copyOf(workers, workers.length + 1);
+                grown[workers.length] = worker;
+                workers = grown;
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Removes idle worker from the pool if there are more than {@code min} workers and no tasks.
+     * If there are tasks, the worker is woken up instead.
+     *
+     * @return {@code true} if the worker should stop
+     */
+    private boolean retire(Worker worker) {
+        synchronized (lock) {
+            if (workers.length <= min || !worker.parked.compareAndSet(true, false)) {
+                return false;
+            }
+            idle.removeFirstOccurrence(worker);
+            if (hasTasks()) {
+                return false;
+            }
+            Worker[] shrunk = new Worker[workers.length - 1];
+            for (int i = 0, j = 0; i < workers.length; i++) {
+                if (workers[i] != worker) {
+                    shrunk[j++] = workers[i];
+                }
+            }
+            workers = shrunk;
+            return true;
+        }
+    }
+
+    private Runnable steal(Worker thief, int level) {
+        Worker[] victims = workers;
+        if (victims.length == 0) {
+            return null;
+        }
+        int start = ThreadLocalRandom.current().nextInt(victims.length);
+        for (int i = 0; i < victims.length; i++) {
+            Worker victim = victims[(start + i) % victims.length];
+            if (victim != thief) {
+                Runnable task = victim.deques.get(level).pollLast();
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean hasTasks() {
+        for (ConcurrentLinkedQueue<Runnable> queue : injection) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        for (Worker worker : workers) {
+            for (ConcurrentLinkedDeque<Runnable> deque : worker.deques) {
+                if (!deque.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        Worker[] stopped;
+        synchronized (lock) {
+            closed = true;
+            stopped = workers;
+        }
+        for (Worker worker : stopped) {
+            worker.interrupt();
+        }
+        for (Worker worker : stopped) {
+            worker.join();
+        }
+    }
+
+    private class Worker extends Thread {
+        private final List<ConcurrentLinkedDeque<Runnable>> deques = new ArrayList<>(PRIORITIES.length);
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private int polls = 0;
+
+        Worker() {
+            for (Priority ignored : PRIORITIES) {
+                deques.add(new ConcurrentLinkedDeque<>());
+            }
+        }
+
+        private WorkStealingPool pool() {
+            return WorkStealingPool.this;
+        }
+
+        private Runnable poll() {
+            boolean aged = ++polls % AGING_PERIOD == 0;
+            for (int i = 0; i < deques.size(); i++) {
+                int level = aged ? deques.size() - 1 - i : i;
+                Runnable task = deques.get(level).pollFirst();
+                if (task == null) {
+                    task = injection.get(level).poll();
+                }
+                if (task == null) {
+                    task = steal(this, level);
+                }
+                if (task != null) {
+                    metrics.dequeued();
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            metrics.threadStarted();
+            try {
+                while (!closed) {
+                    Runnable task = poll();
+                    if (task != null) {
+                        WorkStealingPool.this.run(task);
+                    } else if (!park()) {
+                        return;
+                    }
+                }
+            } finally {
+                metrics.threadStopped();
+            }
+        }
+
+        /**
+         * Waits until the worker is signalled.
+         *
+         * @return {@code false} if the worker has been retired
+         */
+        private boolean park() {
+            parked.set(true);
+            idle.addFirst(this);
+            if (closed || hasTasks()) {
+                if (parked.compareAndSet(true, false)) {
+                    idle.removeFirstOccurrence(this);
+                }
+                return true;
+            }
+            long start = System.nanoTime();
+            long deadline = start + keepAlive;
+            try {
+                while (parked.get() && !closed) {
+                    // a stray interrupt would make parking return at once
+                    Thread.interrupted();
+                    if (workers.length <= min) {
+                        LockSupport.park(this);
+                        deadline = System.nanoTime() + keepAlive;
+                    } else if (deadline - System.nanoTime() > 0) {
+                        LockSupport.parkNanos(this, deadline - System.nanoTime());
+                    } else if (retire(this)) {
+                        return false;
+                    }
+                }
+            } finally {
+                metrics.idle(System.nanoTime() - start);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ServiceLoader;
+
+/**
+ * Hash function used by {@link Walk}. Instances are not thread-safe, but are reused for many files:
+ * {@link #digest(byte[], int)} resets the state.
+ * <p>
+ * Besides built-in {@code XXH64} and algorithms of {@link MessageDigest}, implementations may be added
+ * through {@link ServiceLoader} by registering a {@link Provider}.
+ */
+public interface Digester {
+    /**
+     * @return length of the digest in bytes
+     */
+    int length();
+
+    /**
+     * Updates digest with remaining bytes of the buffer. Position of the buffer is moved to its limit.
+     *
+     * @param buffer data
+     */
+    void update(ByteBuffer buffer);
+
+    /**
+     * Completes calculation, stores the digest of all data passed since the last reset and resets the digester.
+     *
+     * @param out    array to store the digest to
+     * @param offset where to store the digest, {@link #length()} bytes starting from it are overwritten
+     */
+    void digest(byte[] out, int offset);
+
+    /**
+     * Service provider for additional algorithms.
+     */
+    interface Provider {
+        /**
+         * @param algorithm name of the algorithm
+         * @return new digester or {@code null} if the algorithm is unknown to this provider
+         */
+        Digester get(String algorithm);
+    }
+
+    /**
+     * Creates digester for the algorithm.
+     *
+     * @param algorithm {@code XXH64}, name provided by a {@link Provider} or a {@link MessageDigest} algorithm
+     * @return new digester
+     * @throws NoSuchAlgorithmException if nobody provides the algorithm
+     */
+    static Digester forName(String algorithm) throws NoSuchAlgorithmException {
+        if (XXHash64.NAME.equalsIgnoreCase(algorithm)) {
+            return new XXHash64();
+        }
+        for (Provider provider : ServiceLoader.load(Provider.class)) {
+            Digester digester = provider.get(algorithm);
+            if (digester != null) {
+                return digester;
+            }
+        }
+        MessageDigest md = MessageDigest.getInstance(algorithm);
+        return new Digester() {
+            @Override
+            public int length() {
+                return md.getDigestLength();
+            }
+
+            @Override
+            public void update(ByteBuffer buffer) {
+                md.update(buffer);
+            }
+
+            @Override
+            public void digest(byte[] out, int offset) {
+                try {
+                    md.digest(out, offset, md.getDigestLength());
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Finds groups of files with equal contents, reading as little as possible.
+ * <ol>
+ * <li>While walking, files are grouped by size, files of unique size can't have duplicates.</li>
+ * <li>Files in the same group are split by digest of their first and last {@link #BLOCK} bytes.</li>
+ * <li>Files which still collide are split by digest of the whole contents.</li>
+ * </ol>
+ * Files not longer than two blocks are read entirely at the second stage and skip the third one.
+ */
+class DuplicateFinder extends SimpleFileVisitor<Path> {
+    static final int BLOCK = 4096;
+
+    private final Map<Long, List<Candidate>> bySize = new HashMap<>();
+    private final int threads;
+
+    /**
+     * @param threads number of hashing threads, {@code 0} to hash in the calling thread
+     */
+    DuplicateFinder(int threads) {
+        this.threads = threads;
+    }
+
+    private static class Candidate {
+        private final Path path;
+        private final BasicFileAttributes attrs;
+        private byte[] digest;
+
+        Candidate(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+            // most files are never hashed here, but their digests are still valid for usual runs
+            Walk.touch(path, attrs);
+            bySize.computeIfAbsent(attrs.size(), size -> new ArrayList<>()).add(new Candidate(path, attrs));
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException exc) {
+        Walk.metrics.failed();
+        System.out.println("Skipping " + path + ": " + exc.getMessage());
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Hashes colliding files and writes groups of duplicates, largest files first.
+     * Every group is a block of {@code "<hash> <path>"} lines in order of visiting followed by an empty line.
+     *
+     * @param out writer for results
+     * @throws IOException          if results couldn't be written
+     * @throws InterruptedException if interrupted while waiting for hashing threads
+     */
+    void write(ManifestWriter out) throws IOException, InterruptedException {
+        ExecutorService workers = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            List<Long> sizes = new ArrayList<>(bySize.keySet());
+            sizes.sort(Comparator.reverseOrder());
+            for (long size : sizes) {
+                List<Candidate> group = bySize.get(size);
+                if (group.size() < 2) {
+                    continue;
+                }
+                for (List<Candidate> partial : split(workers, group, c -> Walk.hashEnds(c.path, BLOCK, c.digest))) {
+                    List<List<Candidate>> duplicates = size <= 2L * BLOCK
+                            ? Collections.singletonList(partial)
+                            : split(workers, partial, c -> Walk.hash(c.path, c.attrs, c.digest));
+                    for (List<Candidate> duplicate : duplicates) {
+                        for (Candidate candidate : duplicate) {
+                            out.write(candidate.digest, candidate.path);
+                        }
+                        out.newLine();
+                    }
+                }
+            }
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    private interface Hash {
+        boolean apply(Candidate candidate);
+    }
+
+    /**
+     * Calculates digests and splits candidates into groups with equal digests.
+     * Files which couldn't be read are dropped.
+     *
+     * @return groups of at least two candidates
+     */
+    private static List<List<Candidate>> split(ExecutorService workers, List<Candidate> candidates, Hash hash)
+            throws InterruptedException {
+        boolean[] hashed = new boolean[candidates.size()];
+        for (Candidate candidate : candidates) {
+            if (candidate.digest == null) {
+                candidate.digest = Walk.newDigest();
+            }
+        }
+        if (workers == null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                hashed[i] = hash.apply(candidates.get(i));
+            }
+        } else {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                tasks.add(() -> hash.apply(candidate));
+            }
+            List<Future<Boolean>> results = workers.invokeAll(tasks);
+            for (int i = 0; i < hashed.length; i++) {
+                try {
+                    hashed[i] = results.get(i).get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        }
+
+        Map<ByteBuffer, List<Candidate>> byDigest = new LinkedHashMap<>();
+        for (int i = 0; i < hashed.length; i++) {
+            if (hashed[i]) {
+                Candidate candidate = candidates.get(i);
+                byDigest.computeIfAbsent(ByteBuffer.wrap(candidate.digest), d -> new ArrayList<>()).add(candidate);
+            }
+        }
+        List<List<Candidate>> groups = new ArrayList<>();
+        for (List<Candidate> group : byDigest.values()) {
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,172 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Feeds file contents to {@link Digester digesters} through a {@link FileChannel}.
+ * The file is read once, every chunk is passed to all digesters.
+ * The way of reading depends on the file size:
+ * <ul>
+ * <li>smaller than {@code directThreshold} - into a small heap buffer;</li>
+ * <li>smaller than {@code mapThreshold} - into a large direct buffer;</li>
+ * <li>otherwise - by memory-mapped regions.</li>
+ * </ul>
+ * Buffers are allocated once per thread, so one instance may be shared by hashing threads.
+ * <p>
+ * A mapped region stays mapped until its buffer is garbage collected, and small buffer objects may live long.
+ * So at most {@link #MAX_LIVE_MAPPINGS} regions are kept mapped at once, and while there are that many,
+ * large files are read through the direct buffer instead, not to exceed the limit of mappings of the process.
+ */
+class FileHasher {
+    static final long DEFAULT_DIRECT_THRESHOLD = 64 * 1024;
+    static final long DEFAULT_MAP_THRESHOLD = 64 * 1024 * 1024;
+    private static final int HEAP_BUFFER_SIZE = 8 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_LIVE_MAPPINGS = 64;
+
+    private static final ReferenceQueue<ByteBuffer> unmapped = new ReferenceQueue<>();
+    private static final Set<Reference<ByteBuffer>> mappings = ConcurrentHashMap.newKeySet();
+
+    private static final ThreadLocal<ByteBuffer> heapBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(HEAP_BUFFER_SIZE));
+    private static final ThreadLocal<ByteBuffer> directBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+
+    private final long directThreshold;
+    private final long mapThreshold;
+
+    FileHasher() {
+        this(DEFAULT_DIRECT_THRESHOLD, DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * @param directThreshold minimal size of file read through direct buffer
+     * @param mapThreshold    minimal size of file read by mapping it to memory
+     */
+    FileHasher(long directThreshold, long mapThreshold) {
+        this.directThreshold = directThreshold;
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Updates digesters with the whole contents of the file.
+     *
+     * @param path      file to read
+     * @param digesters digesters to update
+     * @throws IOException if the file couldn't be read
+     */
+    void update(Path path, Digester[] digesters) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= mapThreshold) {
+                map(channel, 0, size, digesters);
+            } else {
+                read(channel, size >= directThreshold ? directBuffer.get() : heapBuffer.get(), digesters);
+            }
+        }
+    }
+
+    /**
+     * Updates digesters with the first and the last {@code block} bytes of the file.
+     * Files not longer than two blocks are read entirely, so the result is the same as for {@link #update}.
+     *
+     * @param path      file to read
+     * @param block     size of a block
+     * @param digesters digesters to update
+     * @throws IOException if the file couldn't be read
+     */
+    void updateEnds(Path path, int block, Digester[] digesters) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= 2L * block) {
+                read(channel, heapBuffer.get(), digesters);
+            } else {
+                update(channel, 0, block, digesters);
+                update(channel, size - block, block, digesters);
+            }
+        }
+    }
+
+    /**
+     * Updates digesters with a range of the file.
+     * Only positional reads are used, so many threads may read ranges of the same channel at once.
+     *
+     * @param channel   opened file
+     * @param position  offset of the range
+     * @param length    length of the range
+     * @param digesters digesters to update
+     * @throws IOException if the file couldn't be read
+     */
+    void update(FileChannel channel, long position, long length, Digester[] digesters) throws IOException {
+        long end = position + length;
+        if (length >= mapThreshold) {
+            map(channel, position, end, digesters);
+            return;
+        }
+        read(channel, length >= directThreshold ? directBuffer.get() : heapBuffer.get(), position, end, digesters);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position, long end, Digester[] digesters) throws IOException {
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            buffer.flip();
+            update(buffer, digesters);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, Digester[] digesters) throws IOException {
+        buffer.clear();
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            update(buffer, digesters);
+            buffer.clear();
+        }
+    }
+
+    private static void map(FileChannel channel, long position, long end, Digester[] digesters) throws IOException {
+        for (; position < end; position += MAP_REGION_SIZE) {
+            long length = Math.min(MAP_REGION_SIZE, end - position);
+            if (liveMappings() >= MAX_LIVE_MAPPINGS) {
+                read(channel, directBuffer.get(), position, position + length, digesters);
+            } else {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                mappings.add(new PhantomReference<>(buffer, unmapped));
+                update(buffer, digesters);
+            }
+        }
+    }
+
+    /**
+     * @return number of mapped regions whose buffers are not collected yet
+     */
+    private static int liveMappings() {
+        for (Reference<? extends ByteBuffer> reference; (reference = unmapped.poll()) != null; ) {
+            mappings.remove(reference);
+        }
+        return mappings.size();
+    }
+
+    private static void update(ByteBuffer buffer, Digester[] digesters) {
+        int start = buffer.position();
+        for (Digester digester : digesters) {
+            buffer.position(start);
+            digester.update(buffer);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Digests from previous runs, keyed by absolute path.
+ * A digest is reused only if size, last modified time and file key of the file are the same as when it was calculated.
+ * Modification times are kept in full precision, but file systems store them coarsely, so a file rewritten
+ * shortly after it was hashed may keep its time. Digests of files modified less than {@link #RACY_WINDOW_NANOS}
+ * before they were hashed are not reused.
+ * <p>
+ * Only entries looked up or stored during this run are saved, so files which disappeared are evicted.
+ * The file is rewritten to a temporary file first and then moved over the old one.
+ * <p>
+ * Digests of all algorithms are stored together, so the cache is dropped if the list of algorithms changes.
+ * Files larger than chunk size get a hash tree digest instead of a plain one, so the chunk size is part of the mode too.
+ * <p>
+ * Format: {@link #MAGIC}, mode (modified UTF-8), number of entries, then for every entry:
+ * path (modified UTF-8), size, modification time in nanoseconds, time of hashing in nanoseconds,
+ * file key (empty if none), digest length, digest.
+ */
+class HashCache {
+    private static final int MAGIC = 0x574C4B33;
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final Path file;
+    private final String mode;
+    private final Map<String, Entry> previous = new ConcurrentHashMap<>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private HashCache(Path file, String mode) {
+        this.file = file;
+        this.mode = mode;
+    }
+
+    /**
+     * Reads cache from the file. Missing or damaged file gives an empty cache.
+     *
+     * @param file cache file
+     * @param mode comma-separated names of the algorithms and the chunk size
+     * @return loaded cache
+     */
+    static HashCache load(Path file, String mode) {
+        HashCache cache = new HashCache(file, mode);
+        if (!Files.exists(file)) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cache file");
+            }
+            if (!mode.equals(in.readUTF())) {
+                return cache;
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long hashed = in.readLong();
+                String key = in.readUTF();
+                byte[] digest = new byte[in.readUnsignedShort()];
+                in.readFully(digest);
+                cache.previous.put(path, new Entry(size, modified, hashed, key, digest));
+            }
+        } catch (IOException e) {
+            System.out.println("Cache couldn't be read, ignoring it: " + e.getMessage());
+            cache.previous.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Copies digest calculated earlier if the file hasn't changed since then.
+     *
+     * @param path   file
+     * @param attrs  current attributes of the file
+     * @param digest array to copy the digest to
+     * @return {@code false} if there is no valid digest in the cache
+     */
+    boolean get(Path path, BasicFileAttributes attrs, byte[] digest) {
+        Entry entry = valid(path, attrs);
+        if (entry != null) {
+            System.arraycopy(entry.digest, 0, digest, 0, entry.digest.length);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keeps digest calculated earlier for the next run, if the file hasn't changed since then,
+     * even if the digest isn't needed now.
+     *
+     * @param path  file
+     * @param attrs current attributes of the file
+     */
+    void touch(Path path, BasicFileAttributes attrs) {
+        valid(path, attrs);
+    }
+
+    /**
+     * @return entry of the file kept for the next run, or {@code null} if there is no valid one
+     */
+    private Entry valid(Path path, BasicFileAttributes attrs) {
+        String name = path.toAbsolutePath().toString();
+        Entry entry = current.get(name);
+        if (entry == null) {
+            entry = previous.get(name);
+        }
+        if (entry != null && !entry.racy() && entry.matches(new Entry(attrs, 0, null))) {
+            current.put(name, entry);
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers digest of the file.
+     *
+     * @param path   file
+     * @param attrs  attributes of the file before it was read
+     * @param digest digest of the file, it is copied
+     * @param started time in milliseconds when reading of the file started
+     */
+    void put(Path path, BasicFileAttributes attrs, byte[] digest, long started) {
+        current.put(path.toAbsolutePath().toString(), new Entry(attrs, TimeUnit.MILLISECONDS.toNanos(started),
+                digest.clone()));
+    }
+
+    /**
+     * Forgets digests of files which are not among {@code files}, e.g. deleted while watching.
+     *
+     * @param files files to keep digests of
+     */
+    void retain(Collection<Path> files) {
+        Set<String> names = new HashSet<>();
+        for (Path file : files) {
+            names.add(file.toAbsolutePath().toString());
+        }
+        current.keySet().retainAll(names);
+    }
+
+    /**
+     * Atomically replaces cache file with entries used during this run.
+     *
+     * @throws IOException if the file couldn't be written
+     */
+    void save() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ManifestWatcher.TMP_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(mode);
+                out.writeInt(current.size());
+                for (Map.Entry<String, Entry> e : current.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.hashed);
+                    out.writeUTF(entry.key);
+                    out.writeShort(entry.digest.length);
+                    out.write(entry.digest);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final long hashed;
+        private final String key;
+        private final byte[] digest;
+
+        Entry(long size, long modified, long hashed, String key, byte[] digest) {
+            this.size = size;
+            this.modified = modified;
+            this.hashed = hashed;
+            this.key = key;
+            this.digest = digest;
+        }
+
+        Entry(BasicFileAttributes attrs, long hashed, byte[] digest) {
+            this(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), hashed,
+                    attrs.fileKey() == null ? "" : attrs.fileKey().toString(), digest);
+        }
+
+        /**
+         * @return {@code true} if the file could have been changed after hashing without changing its time
+         */
+        boolean racy() {
+            return hashed - modified < RACY_WINDOW_NANOS;
+        }
+
+        boolean matches(Entry other) {
+            return size == other.size && modified == other.modified && Objects.equals(key, other.key);
+        }
+    }
+}
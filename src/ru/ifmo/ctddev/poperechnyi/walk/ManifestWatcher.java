@@ -0,0 +1,318 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the output of {@link Walk} up to date while files change.
+ * <p>
+ * After the initial walk, every directory is watched with {@link WatchService}.
+ * Events are collected until there are none for {@code debounce} milliseconds,
+ * then only created and modified files are rehashed:
+ * <ul>
+ * <li>digests of modified files are overwritten in place, lines don't move;</li>
+ * <li>created files are appended to the end of the manifest;</li>
+ * <li>if some files were deleted, the manifest is rewritten from memory, nothing is rehashed.</li>
+ * </ul>
+ * If events were lost by {@link WatchService}, all roots are walked again.
+ * <p>
+ * After every update of the manifest the cache is saved too, with digests of files listed in the manifest only.
+ */
+class ManifestWatcher extends SimpleFileVisitor<Path> {
+    private static final int MAX_DEBOUNCES = 10;
+    static final String TMP_SUFFIX = ".tmp";
+
+    private final Path manifest;
+    private final int[] lengths;
+    private final long debounce;
+    private final WatchService watcher;
+    private final List<Path> roots = new ArrayList<>();
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Map<Path, WatchKey> dirs = new HashMap<>();
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+    private final List<Path> ignored = new ArrayList<>();
+    private ManifestWriter out;
+
+    private static class Entry {
+        private long offset;
+        private byte[] digest;
+
+        Entry(long offset, byte[] digest) {
+            this.offset = offset;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * @param manifest output file
+     * @param lengths  lengths of digests in bytes
+     * @param debounce quiet period before changes are applied, in milliseconds
+     * @throws IOException if the output couldn't be opened or watch service couldn't be created
+     */
+    ManifestWatcher(Path manifest, int[] lengths, long debounce) throws IOException {
+        this.manifest = manifest;
+        this.lengths = lengths;
+        this.debounce = debounce;
+        this.watcher = manifest.getFileSystem().newWatchService();
+        this.out = new ManifestWriter(manifest, lengths);
+        ignore(manifest);
+    }
+
+    /**
+     * Ignores changes of the file and its temporary copies, such as the manifest itself.
+     * Temporary copies are named as {@link Files#createTempFile(Path, String, String) createTempFile}
+     * names them with the file name as prefix: the name, a random number and {@link #TMP_SUFFIX}.
+     *
+     * @param file file to ignore
+     */
+    void ignore(Path file) {
+        ignored.add(file.toAbsolutePath().normalize());
+    }
+
+    private boolean isIgnored(Path path) {
+        Path file = path.toAbsolutePath().normalize();
+        String name = file.getFileName().toString();
+        for (Path p : ignored) {
+            String prefix = p.getFileName().toString();
+            if (Objects.equals(file.getParent(), p.getParent())
+                    && (name.equals(prefix) || isTemporary(name, prefix))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTemporary(String name, String prefix) {
+        if (!name.startsWith(prefix) || !name.endsWith(TMP_SUFFIX)
+                || name.length() <= prefix.length() + TMP_SUFFIX.length()) {
+            return false;
+        }
+        for (int i = prefix.length(); i < name.length() - TMP_SUFFIX.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes all files under the root and starts watching it.
+     *
+     * @param root file or directory
+     * @throws IOException if the output couldn't be written
+     */
+    void add(Path root) throws IOException {
+        roots.add(root);
+        long start = System.nanoTime();
+        Files.walkFileTree(root, Walk.metrics.timed(this));
+        Walk.metrics.walked(System.nanoTime() - start);
+        if (!Files.isDirectory(root)) {
+            if (root.getParent() != null) {
+                register(root.getParent(), root.getParent());
+            } else if (!root.isAbsolute()) {
+                register(Paths.get("."), Paths.get(""));
+            }
+        }
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        register(dir, dir);
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        if (!isIgnored(path)) {
+            update(path, attrs);
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException exc) throws IOException {
+        update(path, null);
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * @param dir  directory to watch
+     * @param name how to name the directory when resolving changed files
+     */
+    private void register(Path dir, Path name) {
+        if (dirs.containsKey(name)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, name);
+            dirs.put(name, key);
+        } catch (IOException e) {
+            System.out.println("Directory couldn't be watched: " + dir + '\n' + e.getMessage());
+        }
+    }
+
+    private void update(Path path, BasicFileAttributes attrs) throws IOException {
+        byte[] digest = Walk.newDigest();
+        if (attrs == null) {
+            Walk.metrics.failed();
+            digest = null;
+        } else if (!Walk.hash(path, attrs, digest)) {
+            digest = null;
+        }
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entries.put(path, new Entry(out.position(), digest));
+            out.write(digest, path);
+        } else {
+            entry.digest = digest;
+            out.patch(entry.offset, digest);
+        }
+    }
+
+    /**
+     * Applies changes forever.
+     *
+     * @throws IOException          if the manifest couldn't be written
+     * @throws InterruptedException if interrupted while waiting for changes
+     */
+    void run() throws IOException, InterruptedException {
+        try {
+            while (true) {
+                out.flush();
+                Walk.saveCache(entries.keySet());
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                WatchKey key = watcher.take();
+                for (int i = 0; key != null; i++) {
+                    Path dir = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (dir != null) {
+                            changed.add(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset() && dir != null) {
+                        keys.remove(key);
+                        dirs.remove(dir);
+                        changed.add(dir);
+                    }
+                    key = i < MAX_DEBOUNCES ? watcher.poll(debounce, TimeUnit.MILLISECONDS) : watcher.poll();
+                }
+                if (overflow) {
+                    rescan();
+                } else {
+                    apply(changed);
+                }
+            }
+        } finally {
+            Walk.saveCache(entries.keySet());
+            out.close();
+            watcher.close();
+        }
+    }
+
+    private void apply(Set<Path> changed) throws IOException {
+        boolean removed = false;
+        for (Path path : changed) {
+            if (!isWalked(path) || isIgnored(path)) {
+                continue;
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                removed |= remove(path);
+                continue;
+            } catch (IOException e) {
+                update(path, null);
+                continue;
+            }
+            if (!attrs.isDirectory()) {
+                update(path, attrs);
+            } else if (!dirs.containsKey(path)) {
+                Files.walkFileTree(path, this);
+            }
+        }
+        if (removed) {
+            rewrite();
+        }
+    }
+
+    /**
+     * @return {@code true} if the file is under one of the roots,
+     * not just in the directory watched for changes of a root file
+     */
+    private boolean isWalked(Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean remove(Path path) {
+        boolean removed = entries.remove(path) != null;
+        if (!removed) {
+            for (Iterator<Path> it = entries.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().startsWith(path)) {
+                    it.remove();
+                    removed = true;
+                }
+            }
+            for (Iterator<Map.Entry<Path, WatchKey>> it = dirs.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, WatchKey> dir = it.next();
+                if (dir.getKey().startsWith(path)) {
+                    dir.getValue().cancel();
+                    keys.remove(dir.getValue());
+                    it.remove();
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void rewrite() throws IOException {
+        out.close();
+        Path tmp = Files.createTempFile(manifest.toAbsolutePath().getParent(), manifest.getFileName().toString(), TMP_SUFFIX);
+        try {
+            try (ManifestWriter writer = new ManifestWriter(tmp, lengths)) {
+                for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+                    e.getValue().offset = writer.position();
+                    writer.write(e.getValue().digest, e.getKey());
+                }
+            }
+            try {
+                Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+            out = new ManifestWriter(manifest, lengths, true);
+        }
+    }
+
+    private void rescan() throws IOException {
+        System.out.println("Some changes were lost, walking again");
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        dirs.clear();
+        entries.clear();
+        out.close();
+        out = new ManifestWriter(manifest, lengths);
+        List<Path> all = new ArrayList<>(roots);
+        roots.clear();
+        for (Path root : all) {
+            add(root);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes {@code "<hash> ... <path>\n"} lines to a file.
+ * Digests are encoded to hex and paths to UTF-8 right into one large buffer,
+ * which is written to the {@link FileChannel} only when it is full.
+ * Not thread-safe.
+ */
+class ManifestWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final int[] lengths;
+    private long flushed;
+
+    /**
+     * Creates or truncates the file.
+     *
+     * @param file    output file
+     * @param lengths lengths of digests in bytes, in order of output
+     * @throws IOException if the file couldn't be opened
+     */
+    ManifestWriter(Path file, int[] lengths) throws IOException {
+        this(file, lengths, false);
+    }
+
+    /**
+     * @param file    output file
+     * @param lengths lengths of digests in bytes, in order of output
+     * @param append  append lines to the existing file instead of truncating it
+     * @throws IOException if the file couldn't be opened
+     */
+    ManifestWriter(Path file, int[] lengths, boolean append) throws IOException {
+        // not APPEND: positional writes of patch() may be ignored for channels in append mode
+        this.channel = append
+                ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.lengths = lengths;
+        this.flushed = channel.size();
+        channel.position(flushed);
+    }
+
+    /**
+     * @return offset in the file where the next line will start
+     */
+    long position() {
+        return flushed + buffer.position();
+    }
+
+    /**
+     * Appends line for a file.
+     *
+     * @param digest concatenated digests, or {@code null} to write zeroes
+     * @param path   file
+     * @throws IOException if the buffer couldn't be flushed
+     */
+    void write(byte[] digest, Path path) throws IOException {
+        putDigest(digest);
+        putPath(path);
+    }
+
+    /**
+     * Appends line for a chunk of a file: {@code "<hash> ... <offset> <length> <path>\n"}.
+     *
+     * @param digest concatenated digests of the chunk
+     * @param offset offset of the chunk in the file
+     * @param length length of the chunk
+     * @param path   file
+     * @throws IOException if the buffer couldn't be flushed
+     */
+    void write(byte[] digest, long offset, long length, Path path) throws IOException {
+        putDigest(digest);
+        putLong(offset);
+        putLong(length);
+        putPath(path);
+    }
+
+    private void putLong(long value) throws IOException {
+        ensure(21);
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte t = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, t);
+        }
+        buffer.put((byte) ' ');
+    }
+
+    private void putPath(Path path) throws IOException {
+        String name = path.toString();
+        for (int i = 0; i < name.length(); i++) {
+            ensure(4);
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, name.charAt(++i));
+                buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        ensure(1);
+        buffer.put((byte) '\n');
+    }
+
+    private void putDigest(byte[] digest) throws IOException {
+        int offset = 0;
+        for (int length : lengths) {
+            ensure(2 * length + 1);
+            for (int i = offset; i < offset + length; i++) {
+                int b = digest == null ? 0 : digest[i];
+                buffer.put(HEX[(b >> 4) & 0xF]).put(HEX[b & 0xF]);
+            }
+            buffer.put((byte) ' ');
+            offset += length;
+        }
+    }
+
+    /**
+     * Overwrites digests of a line which is already in the file.
+     * The length of the line doesn't change, so other lines stay in place.
+     *
+     * @param position offset of the line, as returned by {@link #position()} before it was written
+     * @param digest   new concatenated digests, or {@code null} to write zeroes
+     * @throws IOException if the file couldn't be written
+     */
+    void patch(long position, byte[] digest) throws IOException {
+        flush();
+        putDigest(digest);
+        long start = System.nanoTime();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        buffer.clear();
+        Walk.metrics.written(System.nanoTime() - start);
+    }
+
+    /**
+     * Appends an empty line.
+     *
+     * @throws IOException if the buffer couldn't be flushed
+     */
+    void newLine() throws IOException {
+        ensure(1);
+        buffer.put((byte) '\n');
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes buffered lines to the file.
+     *
+     * @throws IOException if the file couldn't be written
+     */
+    void flush() throws IOException {
+        long start = System.nanoTime();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+        Walk.metrics.written(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
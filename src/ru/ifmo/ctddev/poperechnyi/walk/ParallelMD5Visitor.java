@@ -0,0 +1,92 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Hashes files on a fixed pool of workers while the tree is being walked.
+ * Results are written in the order files were visited, so the output is the same as for sequential walk.
+ */
+class ParallelMD5Visitor extends Walk.MD5Visitor {
+    private static final int PENDING_PER_THREAD = 64;
+
+    private final ManifestWriter out;
+    private final ExecutorService workers;
+    private final Queue<Path> paths = new ArrayDeque<>();
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private boolean terminated = false;
+
+    /**
+     * @param out     writer for results
+     * @param threads number of hashing threads
+     */
+    ParallelMD5Visitor(ManifestWriter out, int threads) {
+        this.out = out;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.maxPending = threads * PENDING_PER_THREAD;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        paths.add(path);
+        pending.add(workers.submit(() -> {
+            byte[] digest = Walk.newDigest();
+            return Walk.hash(path, attrs, digest) ? digest : null;
+        }));
+        return flush(false);
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException exc) throws IOException {
+        Walk.metrics.failed();
+        paths.add(path);
+        pending.add(CompletableFuture.completedFuture(null));
+        return flush(false);
+    }
+
+    /**
+     * Writes finished results from the head of the queue.
+     *
+     * @param all wait for every pending result if {@code true},
+     *            otherwise wait only while there are too many of them
+     * @return {@link FileVisitResult#TERMINATE} if hashing is impossible
+     */
+    private FileVisitResult flush(boolean all) throws IOException {
+        while (!pending.isEmpty() && !terminated) {
+            Future<byte[]> head = pending.peek();
+            if (!head.isDone() && !all && pending.size() < maxPending) {
+                break;
+            }
+            try {
+                out.write(head.get(), paths.peek());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminated = true;
+            } catch (ExecutionException e) {
+                System.out.println("Calculation failed.");
+                e.getCause().printStackTrace();
+                terminated = true;
+            }
+            pending.poll();
+            paths.poll();
+        }
+        return terminated ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Writes all pending results and stops the workers.
+     */
+    void close() throws IOException {
+        try {
+            flush(true);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
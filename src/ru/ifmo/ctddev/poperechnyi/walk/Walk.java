@@ -2,65 +2,406 @@ package ru.ifmo.ctddev.poperechnyi.walk;
 
 
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Walk {
-    private static BufferedWriter out;
+    private static ManifestWriter out;
     private static MD5Visitor md5;
-    private static String ZEROES = "00000000000000000000000000000000 ";
+    private static FileHasher hasher = new FileHasher();
+    private static HashCache cache;
+    private static String[] algorithms = {"MD5"};
+    private static int digestLength = 16;
+    private static long chunkSize;
+    private static ExecutorService chunkWorkers;
+    private static ManifestWriter chunkOut;
+    static WalkMetrics metrics = new WalkMetrics();
+    private static final ThreadLocal<Digester[]> digesters = ThreadLocal.withInitial(() -> {
+        try {
+            return digesters(algorithms);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
-    static class MD5Visitor extends SimpleFileVisitor<Path> {
+    private static Digester[] digesters(String[] algorithms) throws NoSuchAlgorithmException {
+        Digester[] result = new Digester[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            result[i] = Digester.forName(algorithms[i]);
+        }
+        return result;
+    }
 
-        @Override
-        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-            MessageDigest md;
-            try {
-                md = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException e) {
-                System.out.println("No md5 algorithm provided.");
-                e.printStackTrace();
-                return FileVisitResult.TERMINATE;
+    /**
+     * @return array large enough for concatenated digests of one file
+     */
+    static byte[] newDigest() {
+        return new byte[digestLength];
+    }
+
+    /**
+     * Calculates digests of the file.
+     * All digests are calculated in one pass by digesters owned by the current thread.
+     * If cache is enabled and the file hasn't changed, digests from the cache are used,
+     * unless the file is hashed by chunks and chunk digests have to be written to {@link #chunkOut}.
+     * Files larger than chunk size are hashed by {@link #hashTree}.
+     *
+     * @param path   file to hash
+     * @param attrs  attributes of the file
+     * @param digest array from {@link #newDigest()} to store concatenated digests to
+     * @return {@code false} if the file couldn't be read
+     */
+    static boolean hash(Path path, BasicFileAttributes attrs, byte[] digest) {
+        boolean chunked = chunkSize > 0 && attrs.size() > chunkSize;
+        if (cache != null && !(chunked && chunkOut != null) && cache.get(path, attrs, digest)) {
+            metrics.cacheHit();
+            return true;
+        }
+        Digester[] current = digesters.get();
+        boolean success = true;
+        long started = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            if (chunked) {
+                hashTree(path, current);
+            } else {
+                hasher.update(path, current);
             }
+        } catch (IOException e) {
+            System.out.println("Calculation error.");
+            e.printStackTrace();
+            success = false;
+        }
+        finish(current, digest);
+        if (success) {
+            metrics.hashed(attrs.size(), System.nanoTime() - start);
+        } else {
+            metrics.failed();
+        }
+        if (success && cache != null) {
+            cache.put(path, attrs, digest, started);
+        }
+        return success;
+    }
 
-            try (InputStream in = new BufferedInputStream(Files.newInputStream(path));
-                 DigestInputStream din = new DigestInputStream(in, md)) {
-                byte buf[] = new byte[1024];
-                while (din.read(buf) > 0) ;
+    /**
+     * Splits the file into chunks of {@link #chunkSize} bytes and hashes them in parallel.
+     * Every digester is then updated with concatenation of its digests of all chunks,
+     * so the result is the root of a two-level hash tree, not a plain digest of the file.
+     * Chunk digests are written to {@link #chunkOut} if it is set.
+     *
+     * @param path      file to hash
+     * @param digesters digesters of the current thread to update with chunk digests
+     * @throws IOException if the file couldn't be read
+     */
+    private static void hashTree(Path path, Digester[] digesters) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<byte[]> chunks = new ArrayList<>();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (long position = 0; position < size; position += chunkSize) {
+                final long offset = position;
+                final byte[] chunk = newDigest();
+                chunks.add(chunk);
+                tasks.add(chunkWorkers.submit(() -> {
+                    Digester[] current = Walk.digesters.get();
+                    hasher.update(channel, offset, Math.min(chunkSize, size - offset), current);
+                    finish(current, chunk);
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing chunks");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                for (Future<?> task : tasks) {
+                    task.cancel(true);
+                }
+            }
 
-                final BigInteger res = new BigInteger(1, md.digest());
-                out.write(String.format("%032X", res) + " " + path.toString() + '\n');
-            } catch (IOException e) {
-                System.out.println("Calculation error.");
-                out.write(ZEROES + path.toString() + '\n');
-                e.printStackTrace();
+            for (byte[] chunk : chunks) {
+                int offset = 0;
+                for (Digester digester : digesters) {
+                    digester.update(ByteBuffer.wrap(chunk, offset, digester.length()));
+                    offset += digester.length();
+                }
+            }
+            if (chunkOut != null) {
+                synchronized (chunkOut) {
+                    for (int i = 0; i < chunks.size(); i++) {
+                        chunkOut.write(chunks.get(i), i * chunkSize, Math.min(chunkSize, size - i * chunkSize), path);
+                    }
+                }
             }
+        }
+    }
+
+    /**
+     * Keeps digest of the file in the cache, if cache is enabled, for files which are visited but not hashed.
+     *
+     * @param path  visited file
+     * @param attrs attributes of the file
+     */
+    static void touch(Path path, BasicFileAttributes attrs) {
+        if (cache != null) {
+            cache.touch(path, attrs);
+        }
+    }
+
+    /**
+     * Calculates digests of the first and the last {@code block} bytes of the file.
+     * For files not longer than two blocks this is the same as {@link #hash}.
+     *
+     * @param path   file to hash
+     * @param block  size of a block
+     * @param digest array from {@link #newDigest()} to store concatenated digests to
+     * @return {@code false} if the file couldn't be read
+     */
+    static boolean hashEnds(Path path, int block, byte[] digest) {
+        Digester[] current = digesters.get();
+        boolean success = true;
+        try {
+            hasher.updateEnds(path, block, current);
+        } catch (IOException e) {
+            System.out.println("Calculation error.");
+            e.printStackTrace();
+            success = false;
+        }
+        finish(current, digest);
+        return success;
+    }
+
+    private static void finish(Digester[] current, byte[] digest) {
+        int offset = 0;
+        for (Digester digester : current) {
+            digester.digest(digest, offset);
+            offset += digester.length();
+        }
+    }
+
+    static class MD5Visitor extends SimpleFileVisitor<Path> {
+        private final byte[] digest = newDigest();
+
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+            out.write(hash(path, attrs, digest) ? digest : null, path);
             return FileVisitResult.CONTINUE;
         }
 
         @Override
         public FileVisitResult visitFileFailed(Path path, IOException exc) throws IOException {
-            out.write(ZEROES + path.toString() + '\n');
+            metrics.failed();
+            out.write(null, path);
             return FileVisitResult.CONTINUE;
         }
     }
 
+    /**
+     * Saves digests of {@code files} to the cache file, if cache is enabled. Digests of other files are dropped.
+     * Called by {@link ManifestWatcher} whenever the manifest has been updated.
+     *
+     * @param files files listed in the manifest
+     */
+    static void saveCache(Collection<Path> files) {
+        if (cache == null) {
+            return;
+        }
+        cache.retain(files);
+        try {
+            cache.save();
+        } catch (IOException e) {
+            System.out.println("Cache couldn't be saved: " + '\n' + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the manifest like a usual run does, then keeps it up to date until interrupted.
+     * See {@link ManifestWatcher}.
+     */
+    private static void watch(Path input, Path output, int[] lengths, long debounce, List<Path> ignored) {
+        List<String> roots;
+        try {
+            roots = Files.readAllLines(input, Charset.forName("UTF-8"));
+        } catch (IOException e) {
+            System.out.println("Input file couldn't be processed: " + e.getMessage());
+            return;
+        }
+        try {
+            ManifestWatcher watcher = new ManifestWatcher(output, lengths, debounce);
+            for (Path file : ignored) {
+                watcher.ignore(file);
+            }
+            for (String root : roots) {
+                watcher.add(Paths.get(root));
+            }
+            watcher.run();
+        } catch (IOException e) {
+            System.out.println("Output file couldn't be processed: " + '\n' + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Watching interrupted");
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length != 2 || args[0] == null || args[1] == null) {
+        int threads = 0;
+        long directThreshold = FileHasher.DEFAULT_DIRECT_THRESHOLD;
+        long mapThreshold = FileHasher.DEFAULT_MAP_THRESHOLD;
+        String cacheFile = null;
+        boolean dedup = false;
+        long debounce = -1;
+        String chunkFile = null;
+        long progress = 0;
+        int first = 0;
+        try {
+            while (args != null && args.length - first > 2 && args[first] != null && args[first].startsWith("-")) {
+                switch (args[first++]) {
+                    case "-threads":
+                        threads = Integer.parseInt(args[first++]);
+                        break;
+                    case "-direct":
+                        directThreshold = Long.parseLong(args[first++]);
+                        break;
+                    case "-mmap":
+                        mapThreshold = Long.parseLong(args[first++]);
+                        break;
+                    case "-cache":
+                        cacheFile = args[first++];
+                        break;
+                    case "-digest":
+                        algorithms = args[first++].split(",");
+                        break;
+                    case "-dedup":
+                        dedup = true;
+                        break;
+                    case "-watch":
+                        debounce = Long.parseLong(args[first++]);
+                        break;
+                    case "-chunk":
+                        chunkSize = Long.parseLong(args[first++]);
+                        break;
+                    case "-chunk-out":
+                        chunkFile = args[first++];
+                        break;
+                    case "-progress":
+                        progress = Long.parseLong(args[first++]);
+                        break;
+                    default:
+                        args = null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            args = null;
+        }
+        if (args == null || args.length - first != 2 || threads < 0 || args[first] == null || args[first + 1] == null
+                || dedup && debounce >= 0 || chunkFile != null && chunkSize <= 0) {
             System.out.println("Usage: " +
-                    "$ RecursiveWalk input_file output_file");
+                    "$ RecursiveWalk [-threads n] [-direct bytes] [-mmap bytes] [-cache file] [-digest alg,...] " +
+                    "[-chunk bytes [-chunk-out file]] [-dedup | -watch debounce_ms] [-progress seconds] " +
+                    "input_file output_file");
             return;
         }
-        md5 = new MD5Visitor();
+        int[] lengths = new int[algorithms.length];
+        try {
+            Digester[] check = digesters(algorithms);
+            digestLength = 0;
+            for (int i = 0; i < check.length; i++) {
+                lengths[i] = check[i].length();
+                digestLength += lengths[i];
+            }
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println("No such algorithm provided: " + e.getMessage());
+            return;
+        }
+        hasher = new FileHasher(directThreshold, mapThreshold);
+        cache = cacheFile == null ? null : HashCache.load(Paths.get(cacheFile),
+                String.join(",", algorithms) + (chunkSize > 0 ? ";chunk=" + chunkSize : ""));
+        if (chunkSize > 0) {
+            chunkWorkers = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        }
+        metrics = new WalkMetrics();
+        metrics.register();
+        ScheduledExecutorService reporter = null;
+        if (progress > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> System.out.println(metrics), progress, progress, TimeUnit.SECONDS);
+        }
+        try {
+            if (chunkFile != null) {
+                chunkOut = new ManifestWriter(Paths.get(chunkFile), lengths);
+            }
+            if (debounce >= 0) {
+                List<Path> ignored = new ArrayList<>();
+                if (cacheFile != null) {
+                    ignored.add(Paths.get(cacheFile));
+                }
+                if (chunkFile != null) {
+                    ignored.add(Paths.get(chunkFile));
+                }
+                watch(Paths.get(args[first]), Paths.get(args[first + 1]), lengths, debounce, ignored);
+            } else {
+                walk(Paths.get(args[first]), Paths.get(args[first + 1]), lengths, threads, dedup);
+            }
+        } catch (IOException e) {
+            System.out.println("Chunk output file couldn't be processed: " + '\n' + e.getMessage());
+        } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+                System.out.println(metrics);
+            }
+            metrics.unregister();
+            if (chunkWorkers != null) {
+                chunkWorkers.shutdownNow();
+            }
+            try {
+                if (chunkOut != null) {
+                    chunkOut.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Chunk output file couldn't be closed" + '\n' + e.getMessage());
+            }
+        }
+    }
 
-        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]), Charset.forName("UTF-8"))) {
+    /**
+     * Walks every root listed in the input file and writes the manifest, or groups of duplicates.
+     */
+    private static void walk(Path input, Path output, int[] lengths, int threads, boolean dedup) {
+        try (BufferedReader in = Files.newBufferedReader(input, Charset.forName("UTF-8"))) {
+            DuplicateFinder duplicates = null;
             try {
-                out = Files.newBufferedWriter(Paths.get(args[1]));
+                out = new ManifestWriter(output, lengths);
+                SimpleFileVisitor<Path> visitor;
+                if (dedup) {
+                    visitor = duplicates = new DuplicateFinder(threads);
+                } else {
+                    visitor = md5 = threads > 0 ? new ParallelMD5Visitor(out, threads) : new MD5Visitor();
+                }
                 String s = null;
                 while (true) {
                     try {
@@ -69,13 +410,35 @@ public class Walk {
                         System.out.println("Problems with file reading: " + '\n' + e.getMessage());
                     }
                     if (s == null) break;
-                    Files.walkFileTree(Paths.get(s), md5);
+                    long start = System.nanoTime();
+                    Files.walkFileTree(Paths.get(s), metrics.timed(visitor));
+                    metrics.walked(System.nanoTime() - start);
+                }
+                if (duplicates != null) {
+                    duplicates.write(out);
+                }
+                if (md5 instanceof ParallelMD5Visitor) {
+                    ((ParallelMD5Visitor) md5).close();
+                }
+                if (cache != null) {
+                    cache.save();
                 }
             } catch (IOException e) {
                 System.out.println("Output file couldn't be processed: " + '\n' + e.getMessage());
+            } catch (InterruptedException e) {
+                System.out.println("Interrupted while looking for duplicates");
             } finally {
                 try {
-                    out.close();
+                    if (md5 instanceof ParallelMD5Visitor) {
+                        ((ParallelMD5Visitor) md5).close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Output file couldn't be processed: " + '\n' + e.getMessage());
+                }
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
                 } catch (IOException e) {
                     System.out.println("Output file couldn't be closed" + '\n' + e.getMessage());
                 }
@@ -84,4 +447,4 @@ public class Walk {
             System.out.println("Input file couldn't be processed: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
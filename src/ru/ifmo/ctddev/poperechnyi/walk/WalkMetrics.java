@@ -0,0 +1,242 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link Walk} run. Updated from all hashing threads through {@link LongAdder LongAdders},
+ * so they are cheap enough to be always on.
+ */
+class WalkMetrics implements WalkMetricsMBean {
+    private static final int BUCKETS = 40;
+
+    private final long start = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder walking = new LongAdder();
+    private final LongAdder callbacks = new LongAdder();
+    private final LongAdder reading = new LongAdder();
+    private final LongAdder writing = new LongAdder();
+    private final LongAdder[] latency = new LongAdder[BUCKETS];
+
+    WalkMetrics() {
+        for (int i = 0; i < BUCKETS; i++) {
+            latency[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a file hashed by reading it.
+     *
+     * @param size  size of the file
+     * @param nanos time spent reading and hashing
+     */
+    void hashed(long size, long nanos) {
+        files.increment();
+        bytes.add(size);
+        reading.add(nanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        latency[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+    }
+
+    void cacheHit() {
+        files.increment();
+        cacheHits.increment();
+    }
+
+    void failed() {
+        files.increment();
+        failed.increment();
+    }
+
+    void written(long nanos) {
+        writing.add(nanos);
+    }
+
+    /**
+     * Wraps the visitor to measure time spent outside of it, which is time of listing directories.
+     *
+     * @param visitor visitor to wrap
+     * @return visitor with the same behaviour
+     */
+    FileVisitor<Path> timed(FileVisitor<Path> visitor) {
+        return new FileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return visitor.preVisitDirectory(dir, attrs);
+                } finally {
+                    callbacks.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return visitor.visitFile(file, attrs);
+                } finally {
+                    callbacks.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return visitor.visitFileFailed(file, exc);
+                } finally {
+                    callbacks.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return visitor.postVisitDirectory(dir, exc);
+                } finally {
+                    callbacks.add(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records time of a whole {@link java.nio.file.Files#walkFileTree} call with a {@link #timed} visitor.
+     *
+     * @param nanos duration of the call
+     */
+    void walked(long nanos) {
+        walking.add(nanos);
+    }
+
+    /**
+     * Registers metrics in the platform MBean server, replacing metrics of the previous run.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = name();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Metrics couldn't be registered: " + e.getMessage());
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name());
+        } catch (JMException ignored) {
+        }
+    }
+
+    private static ObjectName name() throws MalformedObjectNameException {
+        return new ObjectName(WalkMetrics.class.getPackage().getName() + ":type=WalkMetrics");
+    }
+
+    @Override
+    public long getFiles() {
+        return files.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getFailedFiles() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    private double seconds() {
+        return Math.max(1, System.nanoTime() - start) / 1e9;
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        return getFiles() / seconds();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return getBytes() / seconds();
+    }
+
+    @Override
+    public long getListingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(walking.sum() - callbacks.sum());
+    }
+
+    @Override
+    public long getReadingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(reading.sum());
+    }
+
+    @Override
+    public long getWritingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writing.sum());
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = latency[i].sum();
+        }
+        return result;
+    }
+
+    private long percentile(double p) {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen > 0 && seen >= p * total) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files (%d failed, %d cached), %.1f files/s, %.1f MB/s, " +
+                        "p50 %d us, p99 %d us, listing %d ms, reading %d ms, writing %d ms",
+                getFiles(), getFailedFiles(), getCacheHits(), getFilesPerSecond(), getBytesPerSecond() / (1 << 20),
+                getLatencyP50Micros(), getLatencyP99Micros(), getListingMillis(), getReadingMillis(), getWritingMillis());
+    }
+}
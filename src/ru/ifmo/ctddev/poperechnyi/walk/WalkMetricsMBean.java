@@ -0,0 +1,60 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+/**
+ * JMX view of {@link WalkMetrics}.
+ */
+public interface WalkMetricsMBean {
+    /**
+     * @return number of files processed, including cache hits and failures
+     */
+    long getFiles();
+
+    /**
+     * @return number of bytes read while hashing
+     */
+    long getBytes();
+
+    /**
+     * @return number of files which couldn't be visited or read
+     */
+    long getFailedFiles();
+
+    /**
+     * @return number of files whose digests were taken from the cache
+     */
+    long getCacheHits();
+
+    double getFilesPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * @return time the walking thread spent listing directories, outside of visitor callbacks
+     */
+    long getListingMillis();
+
+    /**
+     * @return time spent reading and hashing files, summed over all threads
+     */
+    long getReadingMillis();
+
+    /**
+     * @return time spent writing output
+     */
+    long getWritingMillis();
+
+    /**
+     * @return number of files hashed in {@code [2^(i-1), 2^i)} microseconds, for every {@code i}
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * @return upper bound of median hashing time of a file, in microseconds
+     */
+    long getLatencyP50Micros();
+
+    /**
+     * @return upper bound of 99th percentile of hashing time of a file, in microseconds
+     */
+    long getLatencyP99Micros();
+}
@@ -0,0 +1,118 @@
+package ru.ifmo.ctddev.poperechnyi.walk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming <a href="https://github.com/Cyan4973/xxHash">xxHash64</a> with zero seed.
+ * Non-cryptographic, but much faster than MD5, good enough to find equal files.
+ * Digest is the hash in big-endian byte order.
+ */
+class XXHash64 implements Digester {
+    static final String NAME = "XXH64";
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private final ByteBuffer tail = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+    private long v1, v2, v3, v4;
+    private long total;
+
+    XXHash64() {
+        reset();
+    }
+
+    private void reset() {
+        v1 = P1 + P2;
+        v2 = P2;
+        v3 = 0;
+        v4 = -P1;
+        total = 0;
+        tail.clear();
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1;
+    }
+
+    private static long merge(long acc, long v) {
+        return (acc ^ round(0, v)) * P1 + P4;
+    }
+
+    private void stripe(ByteBuffer in) {
+        v1 = round(v1, in.getLong());
+        v2 = round(v2, in.getLong());
+        v3 = round(v3, in.getLong());
+        v4 = round(v4, in.getLong());
+    }
+
+    @Override
+    public int length() {
+        return 8;
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        total += buffer.remaining();
+        if (tail.position() > 0) {
+            while (tail.hasRemaining() && buffer.hasRemaining()) {
+                tail.put(buffer.get());
+            }
+            if (tail.hasRemaining()) {
+                buffer.order(order);
+                return;
+            }
+            tail.flip();
+            stripe(tail);
+            tail.clear();
+        }
+        while (buffer.remaining() >= STRIPE) {
+            stripe(buffer);
+        }
+        tail.put(buffer);
+        buffer.order(order);
+    }
+
+    @Override
+    public void digest(byte[] out, int offset) {
+        long h;
+        if (total >= STRIPE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = P5;
+        }
+        h += total;
+
+        tail.flip();
+        while (tail.remaining() >= 8) {
+            h = Long.rotateLeft(h ^ round(0, tail.getLong()), 27) * P1 + P4;
+        }
+        if (tail.remaining() >= 4) {
+            h = Long.rotateLeft(h ^ (tail.getInt() & 0xFFFFFFFFL) * P1, 23) * P2 + P3;
+        }
+        while (tail.hasRemaining()) {
+            h = Long.rotateLeft(h ^ (tail.get() & 0xFF) * P5, 11) * P1;
+        }
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+
+        reset();
+        for (int i = 7; i >= 0; i--) {
+            out[offset + i] = (byte) h;
+            h >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.ifmo.ctddev.poperechnyi.parallelmapper;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.ctddev.poperechnyi.parallelmapper.ParallelMapperImpl.Priority;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cycles elastic pools between idle and busy, so tasks are submitted while workers are retiring.
+ */
+public class WorkStealingPoolTest {
+    private static final int ROUNDS = 20_000;
+
+    @Test(timeout = 60_000)
+    public void oneWorkerShortKeepAlive() throws InterruptedException {
+        cycle(new WorkStealingPool(0, 1, 50, TimeUnit.MICROSECONDS, new MapperMetrics()), 1);
+    }
+
+    @Test(timeout = 60_000)
+    public void noKeepAlive() throws InterruptedException {
+        cycle(new WorkStealingPool(0, 1, 0, TimeUnit.NANOSECONDS, new MapperMetrics()), 1);
+    }
+
+    @Test(timeout = 60_000)
+    public void fixedPoolKeepsOneWorker() throws InterruptedException {
+        WorkStealingPool pool = new WorkStealingPool(0, new MapperMetrics());
+        try {
+            Assert.assertEquals(1, pool.size());
+        } finally {
+            pool.close();
+        }
+        cycle(new WorkStealingPool(0, new MapperMetrics()), 1);
+    }
+
+    @Test(timeout = 60_000)
+    public void severalWorkers() throws InterruptedException {
+        cycle(new WorkStealingPool(1, 4, 20, TimeUnit.MICROSECONDS, new MapperMetrics()), 4);
+    }
+
+    private static void cycle(WorkStealingPool pool, int tasks) throws InterruptedException {
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                CountDownLatch done = new CountDownLatch(tasks);
+                for (int i = 0; i < tasks; i++) {
+                    pool.execute(done::countDown, Priority.NORMAL);
+                }
+                Assert.assertTrue("Task lost in round " + round, done.await(10, TimeUnit.SECONDS));
+                LockSupport.parkNanos(round % 100 * 1_000);
+            }
+        } finally {
+            pool.close();
+        }
+    }
+}